@@ -6,8 +6,8 @@
 # Set to Java 11 home.
 JAVA_HOME=/opt/my/java/jdk-11
 
-# Java options.
-JAVA_OPTS=
+# Java options. Idle time in seconds of pooled connections to identity provider.
+JAVA_OPTS="-Djdk.httpclient.keepalive.timeout=60"
 
 # Java main class.
 MAIN_CLASS=sanning.SanningHTTP
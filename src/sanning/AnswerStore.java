@@ -0,0 +1,226 @@
+package sanning;
+
+import static sanning.Util.toBase64;
+import static sanning.Util.toISO8601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compact in-memory answer store. AK and PO are kept as raw SHA-256 bytes and timestamps packed (see
+ * {@link Util#timestamp}) in fixed size chunks of primitive arrays, so growing the store never copies answer data.
+ * Answers are indexed by AK in open addressing hash tables of row numbers, split in segments by AK.
+ * Text form of answers is rendered only when written.
+ * <p>
+ * Appends must be ordered by caller. An appended row is published by the volatile size, so rows below size can be
+ * read without locking. Index segments are locked separately, so a duplicate check and add of an AK is atomic
+ * when done with its segment locked.
+ */
+final class AnswerStore {
+
+    static final int KEY_LEN = 32;                    // Length of raw AK and PO (SHA-256 hash).
+    static final int ROW_LEN = 2 * KEY_LEN;           // Length of raw AK + PO.
+    static final int CHUNK_BITS = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;    // Number of answers per chunk.
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    static final int SEGMENT_BITS = 6;                // Number of index segments: 2^SEGMENT_BITS.
+    static final int MAX_LINE_LEN = 128;              // Maximum length of rendered answer line, with newline.
+
+    volatile byte[][] keyChunks;                      // AK + PO per answer.
+    volatile long[][] tsChunks;                       // Packed timestamp per answer.
+    volatile int size;
+    final Segment[] segments;
+
+    AnswerStore() {
+        keyChunks = new byte[1][];
+        tsChunks = new long[1][];
+        segments = new Segment[1 << SEGMENT_BITS];
+        for (int ix = 0; ix < segments.length; ix++) {
+            segments[ix] = new Segment();
+        }
+    }
+
+    int size() { return size; }
+
+    /**
+     * Add answer, when appends are not concurrent.
+     * @return row number of added answer or -1 if an answer with same AK already exists
+     */
+    int add(long ts, byte[] ak, byte[] po) {
+        Segment segment = segment(ak);
+        segment.lock.lock();
+        try {
+            if (find(ak) != -1) {
+                return -1;
+            }
+            int row = append(ts, ak, po);
+            index(row);
+            return row;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /** Index segment of AK. Lock segment to make duplicate check and add of AK atomic. */
+    Segment segment(byte[] ak) { return segments[hash(ak, 0) >>> (32 - SEGMENT_BITS)]; }
+
+    /**
+     * Find answer with AK.
+     * @return row number or -1 if not found
+     */
+    int find(byte[] ak) {
+        if (ak.length != KEY_LEN) {
+            return -1;
+        }
+        Segment segment = segment(ak);
+        segment.lock.lock();
+        try {
+            int[] index = segment.index;
+            int mask = index.length - 1;
+            for (int slot = hash(ak, 0) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+                int row = index[slot] - 1;
+                if (Arrays.equals(keyChunks[row >>> CHUNK_BITS], (row & CHUNK_MASK) * ROW_LEN, (row & CHUNK_MASK) * ROW_LEN + KEY_LEN,
+                                  ak, 0, KEY_LEN)) {
+                    return row;
+                }
+            }
+            return -1;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Append answer, not indexed. Appends must be ordered by caller.
+     * @return row number of appended answer
+     */
+    int append(long ts, byte[] ak, byte[] po) {
+        // Allocate chunk.
+        int row = size;
+        int chunk = row >>> CHUNK_BITS;
+        if (chunk == keyChunks.length) {
+            byte[][] newKeyChunks = Arrays.copyOf(keyChunks, chunk * 2);
+            long[][] newTsChunks = Arrays.copyOf(tsChunks, chunk * 2);
+            newKeyChunks[chunk] = new byte[CHUNK_SIZE * ROW_LEN];
+            newTsChunks[chunk] = new long[CHUNK_SIZE];
+            keyChunks = newKeyChunks;
+            tsChunks = newTsChunks;
+        } else if (keyChunks[chunk] == null) {
+            keyChunks[chunk] = new byte[CHUNK_SIZE * ROW_LEN];
+            tsChunks[chunk] = new long[CHUNK_SIZE];
+        }
+
+        // Store and publish answer.
+        int offset = (row & CHUNK_MASK) * ROW_LEN;
+        System.arraycopy(ak, 0, keyChunks[chunk], offset, KEY_LEN);
+        System.arraycopy(po, 0, keyChunks[chunk], offset + KEY_LEN, KEY_LEN);
+        tsChunks[chunk][row & CHUNK_MASK] = ts;
+        size = row + 1;
+
+        return row;
+    }
+
+    /** Index appended answer. */
+    void index(int row) {
+        byte[] keys = keyChunks[row >>> CHUNK_BITS];
+        int offset = (row & CHUNK_MASK) * ROW_LEN;
+        Segment segment = segments[hash(keys, offset) >>> (32 - SEGMENT_BITS)];
+        segment.lock.lock();
+        try {
+            if (++segment.count * 2 > segment.index.length) {
+                int[] newIndex = new int[segment.index.length * 2];
+                for (int slot : segment.index) {
+                    if (slot != 0) {
+                        insert(newIndex, slot - 1);
+                    }
+                }
+                segment.index = newIndex;
+            }
+            insert(segment.index, row);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    long ts(int row) { return tsChunks[row >>> CHUNK_BITS][row & CHUNK_MASK]; }
+    String ak(int row) { return toBase64(keyChunks[row >>> CHUNK_BITS], (row & CHUNK_MASK) * ROW_LEN, KEY_LEN); }
+    String po(int row) { return toBase64(keyChunks[row >>> CHUNK_BITS], (row & CHUNK_MASK) * ROW_LEN + KEY_LEN, KEY_LEN); }
+
+    /** PO of answer equals po. */
+    boolean poEquals(int row, byte[] po) {
+        int offset = (row & CHUNK_MASK) * ROW_LEN + KEY_LEN;
+        return Arrays.equals(keyChunks[row >>> CHUNK_BITS], offset, offset + KEY_LEN, po, 0, KEY_LEN);
+    }
+
+    /** Render answer line: <ts> <ak>:<po> */
+    String line(int row) {
+        byte[] line = new byte[MAX_LINE_LEN];
+        return new String(line, 0, line(row, line, 0), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Render answer line into buffer, answer lines are ASCII.
+     * @return offset after answer line
+     */
+    int line(int row, byte[] dst, int offset) {
+        byte[] keys = keyChunks[row >>> CHUNK_BITS];
+        int keyOffset = (row & CHUNK_MASK) * ROW_LEN;
+        offset = toISO8601(ts(row), dst, offset);
+        dst[offset++] = ' ';
+        offset = Util.toBase64(keys, keyOffset, KEY_LEN, dst, offset);
+        dst[offset++] = ':';
+        return Util.toBase64(keys, keyOffset + KEY_LEN, KEY_LEN, dst, offset);
+    }
+
+    /** Append answer lines of all answers, each terminated by newline. */
+    void appendTo(StringBuilder sb) {
+        int size = this.size;
+        byte[] line = new byte[MAX_LINE_LEN];
+        for (int row = 0; row < size; row++) {
+            int len = line(row, line, 0);
+            for (int ix = 0; ix < len; ix++) {
+                sb.append((char) line[ix]);
+            }
+            sb.append('\n');
+        }
+    }
+
+    /** Update digest with answer lines of all answers, each terminated by newline. */
+    void update(MessageDigest digest) {
+        int size = this.size;
+        byte[] line = new byte[MAX_LINE_LEN];
+        for (int row = 0; row < size; row++) {
+            int len = line(row, line, 0);
+            line[len] = '\n';
+            digest.update(line, 0, len + 1);
+        }
+    }
+
+    //
+    // Helper methods:
+    //
+
+    private void insert(int[] index, int row) {
+        int mask = index.length - 1;
+        int slot = hash(keyChunks[row >>> CHUNK_BITS], (row & CHUNK_MASK) * ROW_LEN) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = row + 1;
+    }
+
+    /** AK is a SHA-256 hash, so its first bytes are already uniformly distributed. */
+    private static int hash(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    /** Index segment: open addressing hash table of row number + 1 per slot, 0 for empty slot, with its lock. */
+    static final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        int[] index = new int[16];
+        int count;
+    }
+
+}
@@ -0,0 +1,184 @@
+package sanning;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import sanning.http.Gzip;
+import sanning.http.HTTPRequest;
+import sanning.http.HTTPResponse;
+import sanning.http.HeaderBlock;
+
+/**
+ * Static assets of web resource directories, preloaded when started and served without application dispatch. Each
+ * asset is served under its path and under a fingerprinted path, with content hash before file extension, which is
+ * cached as immutable. A precompressed variant, in a file named as the asset followed by ".gz" or else compressed
+ * when loaded if the asset is text, is served to clients accepting gzip.
+ */
+final class Assets {
+
+    /** Content type by file extension. */
+    static final Map<String,HeaderBlock> CONTENT_TYPES = new HashMap<>();
+    static final HeaderBlock OCTET_STREAM = new HeaderBlock("Content-Type", "application/octet-stream");
+    /** File extensions of text assets, compressed when loaded. */
+    static final Set<String> COMPRESSIBLE = Set.of("css", "js", "json", "html", "txt", "svg");
+
+    static final HeaderBlock IMMUTABLE = new HeaderBlock("Cache-Control", "public, max-age=31536000, immutable");
+
+    static {
+        String[][] types = {
+            {"css", "text/css; charset=UTF-8"},
+            {"js", "text/javascript; charset=UTF-8"},
+            {"json", "application/json"},
+            {"html", "text/html; charset=UTF-8"},
+            {"txt", "text/plain; charset=UTF-8"},
+            {"svg", "image/svg+xml"},
+            {"png", "image/png"},
+            {"jpg", "image/jpeg"},
+            {"jpeg", "image/jpeg"},
+            {"gif", "image/gif"},
+            {"webp", "image/webp"},
+            {"ico", "image/x-icon"},
+            {"woff", "font/woff"},
+            {"woff2", "font/woff2"}
+        };
+        for (String[] type : types) {
+            CONTENT_TYPES.put(type[0], new HeaderBlock("Content-Type", type[1]));
+        }
+    }
+
+    private final Map<String,Asset> assetMap;  // Asset by path and by fingerprinted path.
+    private final String lastModified;
+
+    /**
+     * Load assets of resource directories, from class path directory or jar.
+     * @param dirs resource directory names, missing directories are ignored
+     */
+    Assets(String... dirs) {
+        assetMap = new HashMap<>();
+        lastModified = SanningHTTP.HTTP_DATE.format(Instant.ofEpochMilli(SanningHTTP.STARTED));
+        for (String dir : dirs) {
+            URL url = getClass().getResource("/" + dir);
+            if (url == null) {
+                continue;
+            }
+            try {
+                URI uri = url.toURI();
+                if ("jar".equals(uri.getScheme())) {
+                    try (FileSystem fs = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+                        load(fs.getPath("/" + dir), "/" + dir);
+                    }
+                } else {
+                    load(Paths.get(uri), "/" + dir);
+                }
+            } catch (IOException | URISyntaxException e) {
+                throw new RuntimeException("error loading assets: " + dir + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /** Fingerprinted URL of asset path, or path if not an asset. */
+    String url(String path) {
+        Asset asset = assetMap.get(path);
+        return (asset != null) ? asset.url : path;
+    }
+
+    /** Replace quoted asset paths in text with fingerprinted URLs. */
+    String rewrite(String text) {
+        for (Asset asset : assetMap.values()) {
+            text = text.replace("\"" + asset.path + "\"", "\"" + asset.url + "\"");
+        }
+        return text;
+    }
+
+    /**
+     * Serve asset with request path.
+     * @return false if path is not an asset
+     */
+    boolean serve(String path, HTTPRequest request, HTTPResponse response) {
+        Asset asset = assetMap.get(path);
+        if (asset == null) {
+            return false;
+        }
+        response.contentType = asset.contentType;
+        response.headerBlocks.add(path.equals(asset.url) ? IMMUTABLE : SanningHTTP.REVALIDATE);
+        boolean gzip = (asset.gzipBytes != null) && Gzip.accepted(request, response);
+        if (gzip) {
+            response.headerBlocks.add(Gzip.CONTENT_ENCODING);
+        }
+        if (!SanningHTTP.notModified(request, response, gzip ? asset.gzipEtag : asset.etag, lastModified)) {
+            response.body = gzip ? asset.gzipBytes : asset.bytes;
+        }
+        return true;
+    }
+
+    //
+    // Helper methods:
+    //
+
+    /** Load files in directory tree, with gzip files as precompressed variants of files. */
+    private void load(Path root, String prefix) throws IOException {
+        Map<String,byte[]> files = new TreeMap<>();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            String relative = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+            files.put(prefix + "/" + relative, Files.readAllBytes(path));
+        }
+        for (Map.Entry<String,byte[]> file : files.entrySet()) {
+            String path = file.getKey();
+            if (!path.endsWith(".gz") || !files.containsKey(path.substring(0, path.length() - 3))) {
+                Asset asset = new Asset(path, file.getValue(), files.get(path + ".gz"));
+                assetMap.put(asset.path, asset);
+                assetMap.put(asset.url, asset);
+            }
+        }
+    }
+
+    /** Asset file, with optional precompressed variant. */
+    static final class Asset {
+
+        final String path;
+        final String url;          // Fingerprinted path.
+        final HeaderBlock contentType;
+        final byte[] bytes;
+        final String etag;
+        final byte[] gzipBytes;    // Null if no precompressed variant.
+        final String gzipEtag;
+
+        Asset(String path, byte[] bytes, byte[] gzipBytes) {
+            String hash = Util.toHex(Util.digest().digest(bytes), 0, 8);
+            int slash = path.lastIndexOf('/');
+            int dot = path.lastIndexOf('.');
+            String extension = (dot > slash) ? path.substring(dot + 1) : "";
+            this.path = path;
+            this.url = (dot > slash) ? path.substring(0, dot) + "." + hash + path.substring(dot) : path + "." + hash;
+            this.contentType = CONTENT_TYPES.getOrDefault(extension.toLowerCase(), OCTET_STREAM);
+            this.bytes = bytes;
+            this.etag = "\"" + hash + "\"";
+            if ((gzipBytes == null) && COMPRESSIBLE.contains(extension.toLowerCase())) {
+                gzipBytes = Gzip.compress(bytes);
+                gzipBytes = (gzipBytes.length < bytes.length) ? gzipBytes : null;
+            }
+            this.gzipBytes = gzipBytes;
+            this.gzipEtag = Gzip.etag(etag);
+        }
+    }
+
+}
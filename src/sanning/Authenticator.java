@@ -5,63 +5,165 @@ import java.net.http.HttpClient;
 import java.net.http.HttpClient.Version;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.time.Duration;
-import java.util.concurrent.ExecutionException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.SSLContext;
 
+/**
+ * Asynchronous BankID authentication. Orders are started without waiting for the identity provider and tracked in a
+ * table of pending orders by a server side token. A shared scheduler collects the status of all due orders each
+ * interval, concurrently and with backoff on errors, and completes each order when authentication completes, fails
+ * or expires. No request thread waits for the identity provider.
+ * <p>
+ * Calls are made by one HTTP/2 client, multiplexed over its pooled connections, or over kept alive HTTP/1.1
+ * connections when the identity provider does not support HTTP/2. Idle time of pooled connections is a deployment
+ * setting, jdk.httpclient.keepalive.timeout, set in sanning-http.sh.
+ */
 class Authenticator {
 
     static final int TIMEOUT = 5000;
-    static final Pattern JSON_PATTERN = Pattern.compile("(?s)\"([^\"]+)\"\\s*:\\s*\"([^\"]+)\"");
+    static final int COLLECT_INTERVAL = 2000;       // Collect interval of pending order, as recommended by BankID.
+    static final int MAX_COLLECT_INTERVAL = 16000;  // Maximum collect interval, backed off on errors.
+    static final int MAX_COLLECTS = 64;             // Maximum collect calls in flight.
+    static final int ORDER_TTL = 180000;            // Time from start to expiry of order, after which it is removed.
 
     final String authUrl;
     final HttpClient httpClient;
+    final HttpRequest.Builder authRequest;     // Request of auth call, not modified after created but copied per call.
+    final HttpRequest.Builder collectRequest;  // Request of collect call, not modified after created but copied per call.
+    final Map<String,Order> orders;  // Pending and completed orders by token, until expired.
+    final ScheduledExecutorService scheduler;
+    final AtomicInteger collects;    // Collect calls in flight.
+    final SecureRandom random;
 
     Authenticator(String authUrl, SSLContext sslContext) {
         this.authUrl = authUrl;
-        HttpClient.Builder builder = HttpClient.newBuilder().version(Version.HTTP_1_1).connectTimeout(Duration.ofMillis(TIMEOUT));
+        HttpClient.Builder builder = HttpClient.newBuilder().version(Version.HTTP_2).connectTimeout(Duration.ofMillis(TIMEOUT));
         builder = (sslContext != null) ? builder.sslContext(sslContext) : builder;
         httpClient = builder.build();
+        authRequest = newRequest("/auth");
+        collectRequest = newRequest("/collect");
+        orders = new ConcurrentHashMap<>();
+        collects = new AtomicInteger();
+        random = new SecureRandom();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "collect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::collect, COLLECT_INTERVAL, COLLECT_INTERVAL / 4, TimeUnit.MILLISECONDS);
     }
 
-    String initAuth(String ik, String endUserIp) {
-        return call("/auth", "{\"personalNumber\":\"" + ik + "\",\"endUserIp\":\"" + endUserIp + "\"}", "orderRef");
+    /**
+     * Start authentication of identity, without waiting for order to be placed.
+     * @return started order
+     */
+    Order initAuth(String ik, String endUserIp) {
+        byte[] tokenBytes = new byte[16];
+        random.nextBytes(tokenBytes);
+        Order order = new Order(Base64.getUrlEncoder().withoutPadding().encodeToString(tokenBytes), ik);
+        orders.put(order.token, order);
+        call(authRequest, JSON.encodeObject("personalNumber", ik, "endUserIp", endUserIp), "orderRef").
+            thenAccept(orderRef -> {
+                if (orderRef != null) {
+                    order.orderRef = orderRef;
+                } else {
+                    order.completion.complete(false);
+                }
+            });
+        return order;
     }
 
-    boolean checkAuth(String orderRef) {
-        String status = call("/collect", "{\"orderRef\":\"" + orderRef + "\"}", "status");
-        return "complete".equals(status);
+    /** Order with token, or null if no such order or order expired. */
+    Order order(String token) {
+        return (token != null) ? orders.get(token) : null;
     }
 
-    private String call(String operation, String requestBody, String returnParameter) {
-        HttpRequest request = HttpRequest.newBuilder()
-                                         .POST(HttpRequest.BodyPublishers.ofString(requestBody, StandardCharsets.US_ASCII))
-                                         .uri(URI.create(authUrl + operation))
-                                         .setHeader("User-Agent", "Sanning")
-                                         .header("Content-Type", "application/json")
-                                         .build();
-        try {
-            HttpResponse<String> response = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).get(TIMEOUT, TimeUnit.MILLISECONDS);
-            if (response.statusCode() != 200) {
-                return null;
+    //
+    // Helper methods:
+    //
+
+    /**
+     * Collect status of due orders, run by scheduler. Orders are collected at collect interval, doubled for each
+     * consecutive error. Expired orders are failed, and removed.
+     */
+    private void collect() {
+        long now = System.currentTimeMillis();
+        for (Order order : orders.values()) {
+            if (now > order.expires) {
+                order.completion.complete(false);
+                orders.remove(order.token);
+            } else if (!order.completion.isDone() && (order.orderRef != null) && !order.collecting &&
+                       (now >= order.nextCollect) && (collects.get() < MAX_COLLECTS)) {
+                order.collecting = true;
+                collectStatus(order.orderRef).whenComplete((status, e) -> {
+                    if ("complete".equals(status)) {
+                        order.completion.complete(true);
+                    } else if ("failed".equals(status)) {
+                        order.completion.complete(false);
+                    } else {
+                        order.failures = (status == null) ? order.failures + 1 : 0;
+                        order.nextCollect = System.currentTimeMillis() +
+                                            Math.min((long) COLLECT_INTERVAL << order.failures, MAX_COLLECT_INTERVAL);
+                    }
+                    order.collecting = false;
+                });
             }
-            return extractJSONParameter(response.body(), returnParameter);
-        } catch (InterruptedException | TimeoutException | ExecutionException e) {
-            return null;
         }
+    }
 
+    /**
+     * Collect status of order. Each order is collected by one call at a time, see {@link #collect()}.
+     */
+    private CompletableFuture<String> collectStatus(String orderRef) {
+        collects.incrementAndGet();
+        return call(collectRequest, JSON.encodeObject("orderRef", orderRef), "status").
+            whenComplete((status, e) -> collects.decrementAndGet());
     }
 
-    private static String extractJSONParameter(String json, String paramName) {
-        Matcher m = JSON_PATTERN.matcher(json);
-        //noinspection StatementWithEmptyBody
-        while (m.find() && !m.group(1).equals(paramName));
-        return (m.regionStart() < 0) ? null : m.group(2);
+    /**
+     * Call operation asynchronously, completed with string member of response object or null on error. Body of
+     * other responses than 200 is discarded.
+     */
+    private CompletableFuture<String> call(HttpRequest.Builder requestBuilder, byte[] body, String member) {
+        HttpRequest request = requestBuilder.copy().POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return httpClient.sendAsync(request, response -> (response.statusCode() == 200) ? new JSON.Field(member) : HttpResponse.BodySubscribers.replacing(null)).
+            handle((response, e) -> (e == null) ? response.body() : null);
+    }
+
+    private HttpRequest.Builder newRequest(String operation) {
+        return HttpRequest.newBuilder(URI.create(authUrl + operation))
+                          .timeout(Duration.ofMillis(TIMEOUT))
+                          .setHeader("User-Agent", "Sanning")
+                          .header("Content-Type", "application/json");
+    }
+
+    /** Authentication order of identity, completed with true when authenticated. */
+    static final class Order {
+
+        final String token;
+        final String ik;
+        final long expires;
+        final CompletableFuture<Boolean> completion;
+        volatile String orderRef;  // Null until order is placed.
+        volatile boolean collecting;
+        volatile long nextCollect;
+        volatile int failures;
+
+        Order(String token, String ik) {
+            this.token = token;
+            this.ik = ik;
+            this.expires = System.currentTimeMillis() + ORDER_TTL;
+            this.completion = new CompletableFuture<>();
+        }
     }
 
 }
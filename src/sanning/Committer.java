@@ -0,0 +1,177 @@
+package sanning;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Commit pipeline of a sanning. Appended records are batched and written by one flush (write + force) per batch:
+ * the first committer becomes leader and flushes all records pending at that time, while concurrent committers
+ * wait for the batch containing their record.
+ * Durability mode is one of:
+ * <ul>
+ * <li>sync  - commit flushes immediately, records appended during a flush are flushed by the next one</li>
+ * <li>group - commit waits up to commit delay for more records before flushing</li>
+ * <li>async - commit returns immediately, records are flushed in background after commit delay</li>
+ * </ul>
+ * A failed flush fails the committer: records of the failed batch may be partly written, so no later records are
+ * written and all later commits fail. The sanning is reloaded from disk with a new committer.
+ */
+final class Committer<R> {
+
+    static final String SYNC = "sync";
+    static final String GROUP = "group";
+    static final String ASYNC = "async";
+
+    /** Durability mode: "sync", "group" or "async". */
+    static final String DURABILITY = durability(System.getProperty("sanning.durability", GROUP));
+    /** Maximum delay in milliseconds before a group or async commit is flushed. */
+    static final int COMMIT_DELAY = Integer.getInteger("sanning.commitDelay", 2);
+
+    private static final ScheduledExecutorService ASYNC_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "committer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Writes and forces a batch of records. */
+    interface Flusher<R> {
+        void flush(List<R> records) throws IOException;
+    }
+
+    private final Flusher<R> flusher;
+    private final ReentrantLock lock;
+    private final Condition flushed;  // Signalled when a batch is flushed.
+    private List<R> pending;
+    private long appended;      // Sequence number of last appended record.
+    private long committed;     // Sequence number of last flushed record.
+    private boolean flushing;
+    private boolean scheduled;
+    private volatile IOException failure;  // Failure of first failed flush.
+
+    Committer(Flusher<R> flusher) {
+        this.flusher = flusher;
+        lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        pending = new ArrayList<>();
+    }
+
+    /**
+     * Append record to pending batch.
+     * @param record record to write, or null if flusher writes no records
+     * @return sequence number of record
+     */
+    long append(R record) {
+        lock.lock();
+        try {
+            pending.add(record);
+            if (ASYNC.equals(DURABILITY) && !scheduled) {
+                scheduled = true;
+                ASYNC_EXECUTOR.schedule(this::flushAsync, COMMIT_DELAY, TimeUnit.MILLISECONDS);
+            }
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commit record, returns when record is flushed (not waiting in async mode).
+     * @param seq sequence number of record
+     */
+    void commit(long seq) throws IOException {
+        if (!ASYNC.equals(DURABILITY)) {
+            flush(seq, GROUP.equals(DURABILITY) ? COMMIT_DELAY : 0);
+        } else if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Validate durability mode. */
+    static String durability(String mode) {
+        if (!SYNC.equals(mode) && !GROUP.equals(mode) && !ASYNC.equals(mode)) {
+            throw new IllegalArgumentException("invalid durability mode: " + mode);
+        }
+        return mode;
+    }
+
+    //
+    // Helper methods:
+    //
+
+    private void flush(long seq, long delay) throws IOException {
+        List<R> batch;
+        long batchSeq;
+        lock.lock();
+        try {
+            // Wait for current leader.
+            while (flushing && (committed < seq)) {
+                flushed.await();
+            }
+            if (committed >= seq) {
+                return;
+            } else if (failure != null) {
+                throw failure;
+            }
+
+            // Lead next batch, gather records during delay.
+            flushing = true;
+            if (delay > 0) {
+                flushed.await(delay, TimeUnit.MILLISECONDS);
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+            batchSeq = appended;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("commit interrupted");
+        } finally {
+            lock.unlock();
+        }
+
+        IOException batchFailure = null;
+        try {
+            flusher.flush(batch);
+        } catch (IOException e) {
+            batchFailure = e;
+        }
+
+        lock.lock();
+        try {
+            if (batchFailure != null) {
+                failure = batchFailure;
+            } else {
+                committed = batchSeq;
+            }
+            flushing = false;
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (batchFailure != null) {
+            throw batchFailure;
+        }
+    }
+
+    private void flushAsync() {
+        long seq;
+        lock.lock();
+        try {
+            scheduled = false;
+            seq = appended;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flush(seq, 0);
+        } catch (IOException e) {
+            System.out.println("ERROR: commit failed: " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package sanning;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * JSON of identity provider calls: request objects of string members encoded directly to bytes, and string members
+ * of response objects extracted while the response body is received.
+ */
+final class JSON {
+
+    private JSON() { }
+
+    /**
+     * Encode object of string members.
+     * @param namesAndValues member names and values: name1, value1, name2, value2...
+     * @return object, UTF-8 encoded
+     */
+    static byte[] encodeObject(String... namesAndValues) {
+        StringBuilder sb = new StringBuilder(64).append('{');
+        for (int ix = 0; ix + 1 < namesAndValues.length; ix += 2) {
+            appendString(appendString(sb.append((ix > 0) ? "," : ""), namesAndValues[ix]).append(':'), namesAndValues[ix + 1]);
+        }
+        return sb.append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static StringBuilder appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int ix = 0; ix < s.length(); ix++) {
+            char c = s.charAt(ix);
+            if ((c == '"') || (c == '\\')) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00").append(Util.HEX_CHAR[c >>> 4]).append(Util.HEX_CHAR[c & 0x0f]);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * Body subscriber extracting string member of top level object. Body is scanned byte by byte as received, without
+     * decoding body or buffering more than member names and value, and body completes as soon as member is found.
+     * Body is null if there is no such string member.
+     */
+    static final class Field implements HttpResponse.BodySubscriber<String> {
+
+        private static final int MAX_STRING_LEN = 4096;
+
+        private final byte[] name;
+        private final CompletableFuture<String> value;
+        private byte[] string;      // Bytes of name or value being captured.
+        private int len;
+        private int depth;          // Object and array nesting.
+        private boolean inString;
+        private boolean capture;    // Capture string: name, or value of member.
+        private boolean expectName; // Next string at top level is a member name.
+        private boolean member;     // Name of current top level member matches.
+        private int escape;         // 0 if not in escape, 1 after backslash, 2-5 in unicode escape digits.
+        private int unicode;
+
+        Field(String name) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.value = new CompletableFuture<>();
+            this.string = new byte[64];
+        }
+
+        public CompletionStage<String> getBody() { return value; }
+
+        public void onSubscribe(Flow.Subscription subscription) { subscription.request(Long.MAX_VALUE); }
+
+        public void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining() && !value.isDone()) {
+                    scan(buffer.get());
+                }
+            }
+        }
+
+        public void onError(Throwable throwable) { value.completeExceptionally(throwable); }
+
+        public void onComplete() { value.complete(null); }
+
+        //
+        // Helper methods:
+        //
+
+        private void scan(byte b) {
+            if (inString) {
+                if (escape == 1) {
+                    escape = (b == 'u') ? 2 : 0;
+                    unicode = 0;
+                    if (escape == 0) {
+                        append((b == 'n') ? '\n' : (b == 't') ? '\t' : (b == 'r') ? '\r' : (b == 'b') ? '\b' : (b == 'f') ? '\f' : b);
+                    }
+                } else if (escape > 1) {
+                    unicode = (unicode << 4) | Character.digit(b, 16);
+                    if (++escape == 6) {
+                        escape = 0;
+                        for (byte u : String.valueOf((char) unicode).getBytes(StandardCharsets.UTF_8)) {
+                            append(u);
+                        }
+                    }
+                } else if (b == '\\') {
+                    escape = 1;
+                } else if (b == '"') {
+                    inString = false;
+                    endString();
+                } else {
+                    append(b);
+                }
+                return;
+            }
+
+            switch (b) {
+                case '"':
+                    inString = true;
+                    capture = (depth == 1) && (expectName || member);
+                    len = 0;
+                    break;
+                case '{':
+                case '[':
+                    expectName = (++depth == 1) && (b == '{');
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case ',':
+                    if (depth == 1) {
+                        expectName = true;
+                        member = false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void append(int b) {
+            if (capture) {
+                if (len == string.length) {
+                    if (len == MAX_STRING_LEN) {
+                        capture = false;
+                        len = -1;
+                        return;
+                    }
+                    string = Arrays.copyOf(string, Math.min(len * 2, MAX_STRING_LEN));
+                }
+                string[len++] = (byte) b;
+            }
+        }
+
+        private void endString() {
+            if (capture) {
+                if (expectName) {
+                    expectName = false;
+                    member = (len == name.length) && Arrays.equals(string, 0, len, name, 0, len);
+                } else {
+                    value.complete(new String(string, 0, len, StandardCharsets.UTF_8));
+                }
+            } else if ((depth == 1) && expectName) {
+                expectName = false;
+                member = false;
+            }
+            capture = false;
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package sanning;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental Merkle tree over answer lines, as specified for Certificate Transparency (RFC 6962):
+ * leaf hash is SHA-256(0x00, answer line), node hash is SHA-256(0x01, left, right) and a tree of n leaves is
+ * split at the largest power of two smaller than n.
+ * Hashes of all complete subtrees are kept per level, so appending a leaf is O(log n) and root and inclusion
+ * proofs are computed from O(log n) stored hashes.
+ */
+final class MerkleTree {
+
+    static final int HASH_LEN = 32;
+
+    byte[][] levels;  // Concatenated hashes of complete subtrees of 2^level leaves.
+    int size;         // Number of leaves.
+
+    MerkleTree() {
+        levels = new byte[1][HASH_LEN * 64];
+    }
+
+    int size() { return size; }
+
+    /**
+     * Append leaf of answer line. Leaf and node hashes are hashed directly into levels.
+     * @param answerLine answer line, without newline
+     */
+    void append(byte[] answerLine, int len) {
+        int ix = size;
+        MessageDigest digest = Util.digest();
+        digest.update((byte) 0);
+        digest.update(answerLine, 0, len);
+        Util.digestInto(digest, nodes(0, ix), ix * HASH_LEN);
+        size++;
+
+        // Complete subtrees ending with leaf.
+        for (int level = 0; (ix & 1) == 1; level++, ix >>>= 1) {
+            byte[] nodes = levels[level];
+            digest = nodeDigest(nodes, (ix - 1) * HASH_LEN, nodes, ix * HASH_LEN);
+            Util.digestInto(digest, nodes(level + 1, ix >>> 1), (ix >>> 1) * HASH_LEN);
+        }
+    }
+
+    /** Root hash of tree. */
+    byte[] root() {
+        return root(size);
+    }
+
+    /** Root hash of tree of first leaves, as of an earlier size. */
+    byte[] root(int size) {
+        return (size > 0) ? hash(0, size) : Util.digest().digest();
+    }
+
+    /**
+     * Root hash of tree with answer lines appended, leaving tree unchanged. Complete subtrees of tree are reused, so
+     * only appended leaves and nodes over them are hashed.
+     * @param answerLines answer lines, without newline
+     */
+    byte[] root(List<byte[]> answerLines) {
+        byte[][] leaves = new byte[answerLines.size()][];
+        for (int ix = 0; ix < leaves.length; ix++) {
+            MessageDigest digest = Util.digest();
+            digest.update((byte) 0);
+            digest.update(answerLines.get(ix));
+            leaves[ix] = digest.digest();
+        }
+        int n = size + leaves.length;
+        return (n > 0) ? hash(0, n, leaves) : Util.digest().digest();
+    }
+
+    /**
+     * Inclusion proof (audit path) for leaf, from leaf level to root.
+     * @param leaf leaf index
+     */
+    List<byte[]> proof(int leaf) {
+        List<byte[]> path = new ArrayList<>();
+        path(leaf, 0, size, path);
+        return path;
+    }
+
+    //
+    // Helper methods:
+    //
+
+    /** Hash of leaves in range [from, to). */
+    private byte[] hash(int from, int to) {
+        int n = to - from;
+        if ((n & (n - 1)) == 0) {
+            // Complete subtree.
+            int level = Integer.numberOfTrailingZeros(n);
+            int offset = (from >>> level) * HASH_LEN;
+            return Arrays.copyOfRange(levels[level], offset, offset + HASH_LEN);
+        }
+        int k = Integer.highestOneBit(n);
+        return nodeDigest(hash(from, from + k), 0, hash(from + k, to), 0).digest();
+    }
+
+    /** Hash of leaves in range [from, to), of leaves of tree followed by appended leaf hashes. */
+    private byte[] hash(int from, int to, byte[][] appended) {
+        if (to <= size) {
+            return hash(from, to);
+        }
+        int n = to - from;
+        if (n == 1) {
+            return appended[from - size];
+        }
+        int k = Integer.highestOneBit(n - 1);
+        return nodeDigest(hash(from, from + k, appended), 0, hash(from + k, to, appended), 0).digest();
+    }
+
+    private void path(int leaf, int from, int to, List<byte[]> path) {
+        int n = to - from;
+        if (n > 1) {
+            int k = Integer.highestOneBit(n - 1);
+            if (leaf < from + k) {
+                path(leaf, from, from + k, path);
+                path.add(hash(from + k, to));
+            } else {
+                path(leaf, from + k, to, path);
+                path.add(hash(from, from + k));
+            }
+        }
+    }
+
+    /** Hashes of level, with room for node ix. */
+    private byte[] nodes(int level, int ix) {
+        if (level == levels.length) {
+            levels = Arrays.copyOf(levels, level + 1);
+            levels[level] = new byte[HASH_LEN * 64];
+        }
+        if ((ix + 1) * HASH_LEN > levels[level].length) {
+            levels[level] = Arrays.copyOf(levels[level], levels[level].length * 2);
+        }
+        return levels[level];
+    }
+
+    /** Digest of node, to be completed by caller. */
+    private static MessageDigest nodeDigest(byte[] left, int leftOffset, byte[] right, int rightOffset) {
+        MessageDigest digest = Util.digest();
+        digest.update((byte) 1);
+        digest.update(left, leftOffset, HASH_LEN);
+        digest.update(right, rightOffset, HASH_LEN);
+        return digest;
+    }
+
+}
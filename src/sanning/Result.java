@@ -0,0 +1,35 @@
+package sanning;
+
+/**
+ * Immutable result of a sanning: summary counts, total and timestamp of last answer at a version, which is the
+ * number of answers. Versions are reused when uncommitted answers are dropped by a reload, so results also carry the
+ * time of reload.
+ */
+final class Result {
+
+    final long version;
+    final long[] counts;
+    final long total;
+    final String lastTS;
+    final long reloaded;  // Time of reload after commit failure, 0 if not reloaded.
+
+    Result(long version, long[] counts, String lastTS, long reloaded) {
+        this.version = version;
+        this.counts = counts;
+        this.lastTS = lastTS;
+        this.reloaded = reloaded;
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        this.total = total;
+    }
+
+    /** Result with one more answer. */
+    Result add(int optionNum, String ts) {
+        long[] newCounts = counts.clone();
+        newCounts[optionNum]++;
+        return new Result(version + 1, newCounts, ts, reloaded);
+    }
+
+}
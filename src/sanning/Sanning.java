@@ -1,64 +1,330 @@
 package sanning;
 
+import static sanning.Util.fromBase64;
 import static sanning.Util.hash;
 import static sanning.Util.toBase64;
 import static sanning.Util.toHex;
 import static sanning.Util.toISO8601;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Sanning with answers.
+ * <p>
+ * Answers are added concurrently: AK and PO are generated without locking, duplicate check and add of an AK is atomic
+ * under its answer index segment lock, and only appending answers is ordered by the sanning monitor, which also
+ * guards staged result, seal, Merkle tree and journal.
+ * Staged result of an answer is published when the answer is committed. Readers get a consistent result, without
+ * locking, from the published result.
+ */
 final class Sanning {
 
-    static final int AK_LEN = toBase64(hash("")).length(); // Length of anonymous key (base 64 encoded SHA-256 hash).
-    static final int PO_LEN = toBase64(hash("")).length(); // Length of protected option (base 64 encoded SHA-256 hash).
+    /** Storage mode: "journal" (append answers to journal, checkpoint periodically) or "file" (rewrite file per answer). */
+    static final boolean JOURNAL = !"file".equals(System.getProperty("sanning.storage", "journal"));
+    /** Number of journal records after which the sanning file is checkpointed. */
+    static final int CHECKPOINT_INTERVAL = Integer.getInteger("sanning.checkpoint", 1000);
+    /** Seal mode of new sannings: "hash" (hash of complete sanning) or "chain" (hash chain of answers). */
+    static final boolean CHAIN_SEAL = "chain".equals(System.getProperty("sanning.seal", "hash"));
+    static final String CHAIN_SEAL_PREFIX = "chain:";
+    static final int RENDER_BUFFER_SIZE = 64 * 1024;
+    /** Estimated memory per loaded answer: AK, PO, timestamp, index slots and Merkle tree hashes. */
+    static final int ANSWER_MEMORY = AnswerStore.ROW_LEN + 8 + 16 + 2 * MerkleTree.HASH_LEN;
+
+    /** Writes checkpoints in background, so that answers are not held up by writing and forcing sanning files. */
+    private static final ExecutorService CHECKPOINT_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     final String name;
 
     File file;
+    File gzipFile;                          // Gzip compressed copy of sanning file, when compressed.
+    int fileWrites;                         // Number of sanning file writes, to detect write while compressing.
+    final ReentrantLock fileLock;           // Locked to write sanning file, which is written without holding lock.
+    File journalFile;
+    File oldJournalFile;                    // Journal moved aside by checkpoint, removed when sanning file is written.
+    FileChannel journal;
+    final ReentrantLock journalLock;        // Locked to write journal and counts, and to move journal aside.
+    int journalCount;
+    boolean checkpointing;                  // Checkpoint is scheduled or being written.
+    File countsFile;                        // Result after last flushed journal record.
+    FileChannel countsChannel;
+    Committer<JournalRecord> committer;     // Replaced when reloaded after commit failure.
+    volatile IOException failure;           // Commit failure, answers are reloaded from disk when acquired.
+    long reloaded;                          // Time of last reload after commit failure, carried by results.
     String title;
     String text;
     String[] options;
-    StringBuilder answers;
-    int[] summary;
+    volatile AnswerStore answers;           // Null when not loaded.
+    final ReentrantReadWriteLock loadLock;  // Read locked while answers are used, write locked to load or unload.
+    final ReentrantLock lock;               // Locked to append answers and to read staged state, hash chain and tree.
+    Result staged;                          // Result of all appended answers.
+    final AtomicReference<Result> result;   // Result of committed answers.
     String seal;
+    boolean chainSeal;
+    byte[] chain;
+    final ArrayDeque<ChainLink> links;      // Hash chain links of appended answers, from last committed version.
+    MerkleTree tree;
+    volatile boolean verified;
+    ByteBuffer data;                        // Mapped sanning file, until verified.
+    int answersOffset;                      // Offset of answers in sanning file.
+    int fileAnswers;                        // Number of answers in sanning file.
 
     Sanning(String name, String storageDir) throws IOException {
-        this.name = (name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name);
+        this(name, storageDir, true, true);
+    }
 
+    /**
+     * Load sanning file and replay journal. Sanning file is memory mapped and answers are parsed without intermediate
+     * strings.
+     * @param loadAnswers load answers, otherwise only header and result are loaded and answers are loaded when used,
+     *                    unless there is a journal to replay
+     * @param verify      verify seal when answers are loaded, otherwise sanning is read-only until {@link #verify()}
+     *                    is called
+     */
+    Sanning(String name, String storageDir, boolean loadAnswers, boolean verify) throws IOException {
+        this.name = (name.endsWith(".txt") ? name.substring(0, name.length() - 4) : name);
+        this.committer = newCommitter();
+        this.result = new AtomicReference<>();
+        this.loadLock = new ReentrantReadWriteLock();
+        this.lock = new ReentrantLock();
+        this.fileLock = new ReentrantLock();
+        this.journalLock = new ReentrantLock();
+        this.links = new ArrayDeque<>();
         this.file = new File(storageDir, this.name + ".txt");
-        BufferedReader in = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8));
+        this.gzipFile = new File(storageDir, this.name + ".txt.gz");
+        this.journalFile = new File(storageDir, this.name + ".journal");
+        this.oldJournalFile = new File(storageDir, this.name + ".journal.old");
+        this.countsFile = new File(storageDir, this.name + ".counts");
+        if (gzipFile.lastModified() < file.lastModified()) {
+            Files.deleteIfExists(gzipFile.toPath());
+        }
 
-        title = in.readLine();
-        text = readText(in);
-        options = readOptions(in);
-        String summaryLine = in.readLine();
-        in.readLine();
+        read(loadAnswers);
+        if (verify && (answers != null)) {
+            verify();
+        }
+    }
+
+    /**
+     * Read sanning file: header and summary, followed by answers and journal if loading answers. Without answers,
+     * result is read from summary and last answer line.
+     */
+    void read(boolean loadAnswers) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        title = readLine(data);
+        text = readText(data);
+        options = readOptions(data);
+        String summaryLine = readLine(data);
+        readLine(data);
+        long[] counts = new long[options.length];
         if (summaryLine != null) {
             String[] summaryStr = summaryLine.split(":");
-            summary = new int[summaryStr.length];
-            for (int ix = 0; ix < summary.length; ix++) {
-                summary[ix] = Integer.parseInt(summaryStr[ix]);
+            counts = new long[summaryStr.length];
+            for (int ix = 0; ix < counts.length; ix++) {
+                counts[ix] = Long.parseLong(summaryStr[ix]);
             }
+        }
+        answersOffset = data.position();
+
+        // Header only.
+        String lastTS;
+        if (!loadAnswers && (journalFile.length() == 0) && (oldJournalFile.length() == 0) && ((lastTS = readLastTS(data)) != null)) {
+            staged = new Result(Arrays.stream(counts).sum(), counts, lastTS, reloaded);
+            result.set(staged);
+            data = null;
+            return;
+        }
+
+        readAnswers(data);
+        fileAnswers = answers.size();
+        seal = readLine(data);
+        chainSeal = (seal != null) ? seal.startsWith(CHAIN_SEAL_PREFIX) : CHAIN_SEAL;
+
+        // Replay journal.
+        if (journalFile.exists() || oldJournalFile.exists()) {
+            replayJournal(counts);
+        }
+
+        int size = answers.size();
+        staged = new Result(size, counts, (size > 0) ? toISO8601(answers.ts(size - 1)) : "", reloaded);
+        if (result.get() == null) {
+            result.set(staged);
         } else {
-            summary = new int[options.length];
+            publish(staged);
+        }
+    }
+
+    /**
+     * Load and verify answers, unless loaded. After commit failure, answers are reloaded, dropping answers that were
+     * not committed.
+     */
+    void load() throws IOException {
+        loadLock.writeLock().lock();
+        try {
+            if (failure != null) {
+                System.out.println("ERROR: reloading sanning after commit failure: " + name + ": " + failure.getMessage());
+                answers = null;
+                tree = null;
+                chain = null;
+                links.clear();
+                verified = false;
+                journalCount = 0;
+                committer = newCommitter();
+                if (journal != null) {
+                    journal.close();
+                    journal = null;
+                }
+                if (countsChannel != null) {
+                    countsChannel.close();
+                    countsChannel = null;
+                }
+                reloaded = System.currentTimeMillis();
+                read(true);
+                result.set(staged);
+                failure = null;
+                verify();
+            } else if (answers == null) {
+                read(true);
+                verify();
+            }
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Unload answers, keeping header and result. Journal is checkpointed first, so answers are read from sanning file
+     * only when loaded again.
+     * @return true if unloaded, false if answers are in use or not verified
+     */
+    boolean unload() throws IOException {
+        if (!loadLock.writeLock().tryLock()) {
+            return false;
+        }
+        try {
+            if (answers == null) {
+                return true;
+            } else if (!verified) {
+                return false;
+            }
+            if ((journalCount > 0) && (failure == null)) {
+                persist();
+            }
+            lock.lock();
+            try {
+                answers = null;
+                tree = null;
+                chain = null;
+                links.clear();
+                verified = false;
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    /** Estimated memory used by loaded answers, in bytes. */
+    long memory() {
+        AnswerStore answers = this.answers;
+        return (answers != null) ? (long) answers.size() * ANSWER_MEMORY : 0;
+    }
+
+    /**
+     * Acquire answers, loading them if not loaded. Answers are not unloaded until released.
+     */
+    void acquire() throws IOException {
+        loadLock.readLock().lock();
+        if ((answers == null) || (failure != null)) {
+            loadLock.readLock().unlock();
+            load();
+            loadLock.readLock().lock();
+            if ((answers == null) || (failure != null)) {
+                // Unloaded again before acquired.
+                loadLock.readLock().unlock();
+                acquire();
+            }
         }
-        answers = readAnswers(in);
-        seal = in.readLine();
+    }
+
+    /** Release answers acquired by {@link #acquire()}. */
+    void release() {
+        loadLock.readLock().unlock();
+    }
 
-        // Verify seal.
-        String actualSeal = genSeal();
-        if (seal != null && !seal.equals(actualSeal)) {
-            throw new IllegalStateException("seal broken: " + seal);
+    /**
+     * Verify seal, with seal mode of sanning file. Answers are linked into hash chain and Merkle tree, streamed from
+     * mapped sanning file, followed by answers replayed from journal.
+     */
+    void verify() {
+        lock.lock();
+        try {
+            if (verified) {
+                return;
+            }
+            chain = hash(title, text, String.join("", options));
+            tree = new MerkleTree();
+            MessageDigest sealDigest = chainSeal ? null : Util.newDigest(title, text, String.join("", options));
+
+            ByteBuffer answerData = data.duplicate();
+            answerData.position(answersOffset);
+            byte[] line = new byte[AnswerStore.MAX_LINE_LEN];
+            for (int row = 0; row < fileAnswers; row++) {
+                int len = nextLine(answerData, line);
+                if (len == line.length) {
+                    throw new IllegalStateException("invalid answer: " + new String(line, StandardCharsets.UTF_8));
+                }
+                line[len] = '\n';
+                linkAnswer(line, len);
+                if (sealDigest != null) {
+                    sealDigest.update(line, 0, len + 1);
+                }
+            }
+            String actualSeal = chainSeal ? CHAIN_SEAL_PREFIX + toHex(chain) : toHex(sealDigest.digest());
+            if (seal != null && !seal.equals(actualSeal)) {
+                throw new IllegalStateException("seal broken: " + seal);
+            }
+
+            for (int row = fileAnswers; row < answers.size(); row++) {
+                int len = answers.line(row, line, 0);
+                line[len] = '\n';
+                linkAnswer(line, len);
+            }
+            data = null;
+            verified = true;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -69,69 +335,518 @@ final class Sanning {
      * @param p         personal code
      * @return timestamped answer
      */
-    synchronized Answer doAnswer(String ik, int optionNum, String p) throws IOException {
-        if (optionNum >= summary.length) {
+    Answer doAnswer(String ik, int optionNum, String p) throws IOException {
+        if (optionNum >= options.length) {
             throw new IllegalArgumentException("invalid answer: " + optionNum);
         }
-        String o = options[optionNum];
+        acquire();
+        try {
+            return doAnswer(ik, optionNum, options[optionNum], p);
+        } finally {
+            release();
+        }
+    }
+
+    private Answer doAnswer(String ik, int optionNum, String o, String p) throws IOException {
+        checkVerified();
 
         // Generate AK.
-        String ak = generateAK(ik);
+        byte[] akBytes = new byte[AnswerStore.KEY_LEN];
+        hash(akBytes, 0, text, ik);
+        String ak = toBase64(akBytes);
 
         // Generate PO.
-        String po = generatePO(ak, p, o);
+        byte[] poBytes = new byte[AnswerStore.KEY_LEN];
+        hash(poBytes, 0, ak, p, o);
+        String po = toBase64(poBytes);
+
+        long seq;
+        boolean checkpoint;
+        Result answerResult;
+        Answer answer;
+        AnswerStore.Segment segment = answers.segment(akBytes);
+        segment.lock.lock();
+        try {
+            // Verify that AK has not answered.
+            int oldRow = answers.find(akBytes);
+            if (oldRow != -1) {
+                return lookupAnswer(oldRow, ak, p);
+            }
+
+            // Append answer and stage result, in order.
+            int row;
+            lock.lock();
+            try {
+                long ts = Util.timestamp(System.currentTimeMillis());
+                row = answers.append(ts, akBytes, poBytes);
+                byte[] record = new byte[AnswerStore.MAX_LINE_LEN];
+                int len = answers.line(row, record, 0);
+                record[len] = '\n';
+                if (links.isEmpty()) {
+                    links.add(new ChainLink(staged.version, chain));
+                }
+                linkAnswer(record, len);
+                String tsStr = toISO8601(ts);
+                staged = answerResult = staged.add(optionNum, tsStr);
+                addLink(answerResult.version);
+
+                // Append journal record, or have file persisted.
+                seq = committer.append(JOURNAL ? new JournalRecord(Arrays.copyOf(record, len + 1), answerResult) : null);
+                checkpoint = JOURNAL && (++journalCount >= CHECKPOINT_INTERVAL) && !checkpointing;
+                checkpointing |= checkpoint;
+                answer = new Answer(tsStr, ak, po, o, false);
+            } finally {
+                lock.unlock();
+            }
+            answers.index(row);
+        } finally {
+            segment.lock.unlock();
+        }
+
+        // Checkpoint in background when journal is full.
+        if (checkpoint) {
+            CHECKPOINT_EXECUTOR.execute(this::checkpoint);
+        }
+
+        // Wait for answer to be committed and publish result. If commit fails, answer is not acknowledged and sanning
+        // is reloaded from disk before next use, dropping uncommitted answers.
+        try {
+            committer.commit(seq);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        publish(answerResult);
+
+        return answer;
+    }
+
+    /**
+     * Write complete sanning file. In journal mode this is a checkpoint, after which the journal is reset.
+     */
+    void persist() throws IOException {
+        acquire();
+        try {
+            writeFile();
+        } finally {
+            release();
+        }
+    }
 
-        // Verify that AK has not answered.
-        Answer oldAnswer = lookupAnswer(ak, p);
-        if (oldAnswer != null) {
-            return oldAnswer;
+    /** Write checkpoint, unless answers were unloaded or reloaded meanwhile, which leaves nothing to checkpoint. */
+    private void checkpoint() {
+        loadLock.readLock().lock();
+        try {
+            if ((answers != null) && (failure == null)) {
+                writeFile();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("ERROR: checkpoint failed: " + name + ": " + e.getMessage());
+        } finally {
+            lock.lock();
+            try {
+                checkpointing = false;
+            } finally {
+                lock.unlock();
+            }
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Write sanning file of appended answers. Only the snapshot of answers is taken under lock, and the file is written
+     * and forced while answers are appended. In journal mode, the journal of the snapshot is moved aside and removed
+     * when the file is in place, while answers appended meanwhile are journaled to a new journal. Answers are loaded
+     * and verified by caller.
+     */
+    private void writeFile() throws IOException {
+        fileLock.lock();
+        try {
+            // Snapshot of appended answers, moving journal aside unless left by an earlier failed write.
+            int size;
+            String header;
+            byte[] sealChain;
+            journalLock.lock();
+            try {
+                lock.lock();
+                try {
+                    checkVerified();
+                    checkFailure();
+                    size = answers.size();
+                    StringBuilder sb = new StringBuilder();
+                    appendHeader(sb, staged.counts);
+                    header = sb.toString();
+                    sealChain = chain;
+                    if ((journalCount > 0) && !oldJournalFile.exists()) {
+                        if (journal != null) {
+                            journal.close();
+                            journal = null;
+                        }
+                        Files.move(journalFile.toPath(), oldJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                        journalCount = 0;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                journalLock.unlock();
+            }
+
+            // Write and force temporary file.
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeAnswers(out, size, header, sealChain);
+                out.force(false);
+            }
+
+            // Replace sanning file, which then has the answers of the journal moved aside.
+            lock.lock();
+            try {
+                checkFailure();
+                fileWrites++;
+                Files.deleteIfExists(gzipFile.toPath());
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                fileAnswers = size;
+                Files.deleteIfExists(oldJournalFile.toPath());
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
+    /** Throw if a commit failed, so that answers are reloaded before they are written. */
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("commit failed: " + name, failure);
+        }
+    }
+
+    /**
+     * Open sanning file for reading, if it contains exactly the committed answers, that is when answers are not loaded
+     * or there are no journal records since last checkpoint and no answers are being committed.
+     * @return open sanning file or null if answers are in journal or being committed
+     */
+    FileChannel openFile() throws IOException {
+        lock.lock();
+        try {
+            return fileCommitted() ? FileChannel.open(file.toPath()) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sanning file contains exactly the committed answers. Locked by caller. */
+    private boolean fileCommitted() {
+        return (answers == null) || ((journalCount == 0) && (fileAnswers == result.get().version));
+    }
+
+    /**
+     * Open gzip compressed copy of sanning file for reading, if sanning file contains exactly the committed answers.
+     * Sanning file is compressed when first opened after it is written, without holding lock, and the copy is removed
+     * when sanning file is written again.
+     * @return open compressed file or null if answers are in journal or being committed, or sanning file was written
+     *         while compressing
+     */
+    FileChannel openCompressedFile() throws IOException {
+        int writes;
+        lock.lock();
+        try {
+            if (!fileCommitted()) {
+                return null;
+            } else if (gzipFile.exists()) {
+                return FileChannel.open(gzipFile.toPath());
+            }
+            writes = fileWrites;
+        } finally {
+            lock.unlock();
+        }
+
+        // Compress to temporary file, installed unless sanning file was written meanwhile.
+        File tmpFile = File.createTempFile(file.getName(), ".gz.tmp", file.getParentFile());
+        try {
+            try (InputStream in = Files.newInputStream(file.toPath());
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile), RENDER_BUFFER_SIZE)) {
+                in.transferTo(out);
+            }
+            lock.lock();
+            try {
+                if ((fileWrites != writes) || !fileCommitted()) {
+                    return null;
+                } else if (!gzipFile.exists()) {
+                    Files.move(tmpFile.toPath(), gzipFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                return FileChannel.open(gzipFile.toPath());
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * Render sanning with all answers at time of call, without writing sanning file. Render is written in chunks of
+     * rendered answer lines and the seal is computed while writing.
+     * @return writer of render
+     */
+    Render render() throws IOException {
+        // Snapshot of committed answers.
+        int size;
+        String header;
+        byte[] sealChain;
+        acquire();
+        try {
+            lock.lock();
+            try {
+                checkVerified();
+                Result committed = result.get();
+                size = (int) committed.version;
+                StringBuilder sb = new StringBuilder();
+                appendHeader(sb, committed.counts);
+                header = sb.toString();
+                sealChain = chain(size);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            release();
         }
 
-        // Update summary.
-        summary[optionNum]++;
+        return out -> {
+            acquire();
+            try {
+                writeAnswers(out, size, header, sealChain);
+            } finally {
+                release();
+            }
+        };
+    }
 
-        // Timestamp.
-        String ts = toISO8601(System.currentTimeMillis());
+    /**
+     * Write header, first answers and seal of snapshot. Answers are acquired by caller.
+     * @param size      number of answers
+     * @param header    header with summary of answers
+     * @param sealChain hash chain link after answers
+     */
+    private void writeAnswers(WritableByteChannel out, int size, String header, byte[] sealChain) throws IOException {
+        MessageDigest sealDigest = chainSeal ? null : Util.newDigest(title, text, String.join("", options));
+        ByteBuffer buffer = ByteBuffer.allocate(RENDER_BUFFER_SIZE);
+        byte[] bytes = Util.toBytes(header);
+        write(out, buffer, bytes, bytes.length);
+        byte[] line = new byte[AnswerStore.MAX_LINE_LEN];
+        for (int row = 0; row < size; row++) {
+            int len = answers.line(row, line, 0);
+            line[len++] = '\n';
+            if (sealDigest != null) {
+                sealDigest.update(line, 0, len);
+            }
+            write(out, buffer, line, len);
+        }
+        bytes = Util.toBytes("\n", chainSeal ? CHAIN_SEAL_PREFIX + toHex(sealChain) : toHex(sealDigest.digest()));
+        write(out, buffer, bytes, bytes.length);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /** Writer of sanning render. */
+    interface Render {
+        void writeTo(WritableByteChannel out) throws IOException;
+    }
 
-        // Create new answer line.
-        answers.append(ts).append(" ").append(ak).append(":").append(po).append('\n');
+    private Committer<JournalRecord> newCommitter() {
+        return new Committer<>(JOURNAL ? this::writeJournal : records -> persist());
+    }
+
+    /** Journal record: answer line, and result after the answer. */
+    static final class JournalRecord {
+
+        final byte[] line;
+        final Result result;
 
-        // Persist (always for now!).
-        persist();
+        JournalRecord(byte[] line, Result result) {
+            this.line = line;
+            this.result = result;
+        }
+    }
 
-        return new Answer(ts, ak, po, o, false);
+    /**
+     * Write and force batch of journal records, then counts of result after batch.
+     * Journal records are answer lines as in sanning file: <ts> <ak>:<po>
+     * Options of answers are not journaled, as that would map AKs to options. Instead the counts file is overwritten
+     * with result after last flushed record: <total> <count1>:<count2>:... padded to fixed length, so only the
+     * latest counts are kept, as in sanning file summary.
+     */
+    void writeJournal(List<JournalRecord> records) throws IOException {
+        journalLock.lock();
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[records.size()];
+            long len = 0;
+            for (int ix = 0; ix < buffers.length; ix++) {
+                buffers[ix] = ByteBuffer.wrap(records.get(ix).line);
+                len += buffers[ix].remaining();
+            }
+            FileChannel journal = openJournal();
+            while (len > 0) {
+                len -= journal.write(buffers);
+            }
+            journal.force(false);
+
+            Result result = records.get(records.size() - 1).result;
+            StringBuilder sb = new StringBuilder().append(result.version).append(' ');
+            for (int ix = 0; ix < result.counts.length; ix++) {
+                sb.append((ix > 0) ? ":" : "").append(result.counts[ix]);
+            }
+            int countsLen = (result.counts.length + 1) * 21 + 1;
+            while (sb.length() < countsLen - 1) {
+                sb.append(' ');
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(sb.append('\n').toString().getBytes(StandardCharsets.US_ASCII));
+            FileChannel counts = openCounts();
+            while (buffer.hasRemaining()) {
+                counts.write(buffer, buffer.position());
+            }
+            counts.force(false);
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    FileChannel openJournal() throws IOException {
+        lock.lock();
+        try {
+            if (journal == null) {
+                journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            return journal;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    FileChannel openCounts() throws IOException {
+        lock.lock();
+        try {
+            if (countsChannel == null) {
+                countsChannel = FileChannel.open(countsFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            return countsChannel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replay journal records not already in answers, up to total of counts file, and take counts from counts file.
+     * Records after that total were not committed, and are discarded with an incomplete trailing record (interrupted
+     * or failed write). If counts file is missing or not ahead of sanning file, journal records are not committed beyond sanning
+     * file. A journal moved aside by an unfinished checkpoint precedes the journal, and is merged into it.
+     */
+    void replayJournal(long[] counts) throws IOException {
+        long[] journalCounts = readCounts(counts.length);
+        long total = ((journalCounts != null) && (journalCounts[0] > answers.size())) ? journalCounts[0] : answers.size();
+        boolean merge = oldJournalFile.exists();
+        byte[] bytes = journalFile.exists() ? Files.readAllBytes(journalFile.toPath()) : new byte[0];
+        if (merge) {
+            byte[] oldBytes = Files.readAllBytes(oldJournalFile.toPath());
+            byte[] merged = Arrays.copyOf(oldBytes, oldBytes.length + bytes.length);
+            System.arraycopy(bytes, 0, merged, oldBytes.length, bytes.length);
+            bytes = merged;
+        }
+        byte[] line = new byte[AnswerStore.MAX_LINE_LEN];
+        byte[] ak = new byte[AnswerStore.KEY_LEN];
+        byte[] po = new byte[AnswerStore.KEY_LEN];
+        int validLen = 0;
+        int ix1 = 0;
+        int ix2;
+        while ((answers.size() < total) && ((ix2 = indexOf(bytes, (byte) '\n', ix1, bytes.length)) != -1)) {
+            // Records already in answers are left from an interrupted checkpoint.
+            long ts = parseAnswer(bytes, ix1, ix2 - ix1, ak, po);
+            int row = answers.find(ak);
+            if (row == -1) {
+                answers.add(ts, ak, po);
+            } else if (!Arrays.equals(line, 0, answers.line(row, line, 0), bytes, ix1, ix2)) {
+                throw new IllegalStateException("duplicate anonymous key: " + toBase64(ak));
+            }
+            journalCount++;
+            validLen = ix1 = ix2 + 1;
+        }
+        if (answers.size() < total) {
+            throw new IllegalStateException("journal records missing: " + answers.size() + " of " + total);
+        } else if (total > fileAnswers) {
+            System.arraycopy(journalCounts, 1, counts, 0, counts.length);
+        }
+        if (merge) {
+            File tmpFile = new File(journalFile.getPath() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, validLen);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(false);
+            }
+            Files.move(tmpFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(oldJournalFile.toPath());
+        } else if (validLen < bytes.length) {
+            try (RandomAccessFile raf = new RandomAccessFile(journalFile, "rw")) {
+                raf.setLength(validLen);
+            }
+        }
     }
 
-    String persist() throws IOException {
-        // Write output file.
-        PrintWriter out = new PrintWriter(new FileWriter(file, StandardCharsets.UTF_8));
-        String s = toString();
-        out.print(s);
-        out.close();
-        return s;
+    /**
+     * Read counts file.
+     * @return total followed by counts, or null if no counts file
+     */
+    private long[] readCounts(int optionCount) throws IOException {
+        if (!countsFile.exists()) {
+            return null;
+        }
+        String countsLine = new String(Files.readAllBytes(countsFile.toPath()), StandardCharsets.US_ASCII).trim();
+        String[] countsStr = countsLine.split("[ :]");
+        long[] counts = new long[optionCount + 1];
+        try {
+            for (int ix = 0; ix < counts.length; ix++) {
+                counts[ix] = Long.parseLong(countsStr[ix]);
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("invalid journal counts: " + countsLine);
+        }
+        if ((countsStr.length != counts.length) || (Arrays.stream(counts, 1, counts.length).sum() != counts[0])) {
+            throw new IllegalStateException("invalid journal counts: " + countsLine);
+        }
+        return counts;
     }
 
     /**
      * Lookup answer line for ak.
      * @return answer line or null if not found
      */
-    Answer lookupAnswer(String ak, String p) {
-        int ix1 = (answers != null) ? answers.indexOf(" " + ak + ":") : -1;
-        if (ix1 != -1) {
-            int ix2 = answers.indexOf("\n", ix1);
-            String answerLine = answers.substring(ix1 - Util.ISO_8601_LEN, ix2);
-
-            // <ts> <ak>:<po>
-            ix1 = answerLine.indexOf(' ');
-            String ts = answerLine.substring(0, ix1);
-            ix2 = answerLine.indexOf(':', ix1);
+    Answer lookupAnswer(String ak, String p) throws IOException {
+        acquire();
+        try {
+            return lookupAnswer(answers.find(fromBase64(ak)), ak, p);
+        } finally {
+            release();
+        }
+    }
 
-            String po = answerLine.substring(ix2 + 1);
+    private Answer lookupAnswer(int row, String ak, String p) {
+        if (row != -1) {
+            String ts = toISO8601(answers.ts(row));
+            String po = answers.po(row);
             String option = null;
             if (p != null) {
                 // Use P to reveal actual option.
+                byte[] poBytes = new byte[AnswerStore.KEY_LEN];
                 for (String o : options) {
-                    if (generatePO(ak, p, o).equals(po)) {
+                    hash(poBytes, 0, ak, p, o);
+                    if (answers.poEquals(row, poBytes)) {
                         option = o;
                         break;
                     }
@@ -144,14 +859,202 @@ final class Sanning {
     }
 
 
-    /** Timestamp of last answer. */
-    synchronized String lastTS() {
-        String lastAnswerLine = answers.substring(Math.max(0, answers.length() - (Util.ISO_8601_LEN + 1 + Sanning.AK_LEN + 1 + Sanning.PO_LEN + 1)));
-        int ix = lastAnswerLine.indexOf('\n') + 1;
-        if (ix >= lastAnswerLine.length()) {
-            ix = 0;
+    /**
+     * Merkle tree inclusion proof of answer for ak.
+     * Proof is answer line, leaf index and tree size, root hash and audit path from leaf to root:
+     * <pre>
+     * &lt;ts&gt; &lt;ak&gt;:&lt;po&gt;
+     * &lt;leaf index&gt;:&lt;tree size&gt;
+     * &lt;root&gt;
+     *
+     * &lt;hash&gt;
+     * ...
+     * </pre>
+     * @return proof or null if not found
+     */
+    String proof(String ak) throws IOException {
+        acquire();
+        try {
+            return proof(answers.find(fromBase64(ak)));
+        } finally {
+            release();
+        }
+    }
+
+    private String proof(int row) {
+        lock.lock();
+        try {
+            checkVerified();
+            if (row == -1) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(answers.line(row)).append('\n');
+            sb.append(row).append(':').append(tree.size()).append('\n');
+            sb.append(toHex(tree.root())).append("\n\n");
+            for (byte[] hash : tree.proof(row)) {
+                sb.append(toHex(hash)).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Answers appended since version, with state of source to verify continuity:
+     * <pre>
+     * &lt;version&gt;:&lt;new version&gt;
+     * &lt;summary&gt;
+     * &lt;hash chain link&gt;
+     * &lt;Merkle root&gt;
+     *
+     * &lt;ts&gt; &lt;ak&gt;:&lt;po&gt;
+     * ...
+     * </pre>
+     * Summary, hash chain link and Merkle root are of all answers up to new version.
+     * @param version number of answers already known
+     */
+    String answersSince(int version) throws IOException {
+        acquire();
+        try {
+            StringBuilder sb = new StringBuilder();
+            int size;
+            lock.lock();
+            try {
+                checkVerified();
+                Result committed = result.get();
+                size = (int) committed.version;
+                if ((version < 0) || (version > size)) {
+                    throw new IllegalArgumentException("invalid version: " + version);
+                }
+                long[] counts = committed.counts;
+                sb.append(version).append(':').append(size).append('\n');
+                for (int ix = 0; ix < counts.length; ix++) {
+                    sb.append(counts[ix]).append((ix + 1 < counts.length) ? ":" : "\n");
+                }
+                sb.append(toHex(chain(size))).append('\n');
+                sb.append(toHex(tree.root(size))).append("\n\n");
+            } finally {
+                lock.unlock();
+            }
+            for (int row = version; row < size; row++) {
+                sb.append(answers.line(row)).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Version at timestamp, that is number of committed answers up to and including timestamp. Timestamps are
+     * ascending, so committed answers are binary searched.
+     * @param ts packed timestamp
+     */
+    int version(long ts) throws IOException {
+        acquire();
+        try {
+            long millis = ts >> 12;
+            int low = 0;
+            int high = (int) result.get().version;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if ((answers.ts(mid) >> 12) > millis) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Append answers of a source sanning, after verifying continuity and summary: answers linked to hash chain must
+     * give hash chain link of source, answers appended to Merkle tree must give Merkle root of source and summary
+     * must count all answers. Nothing is appended unless verified. Mirrored sanning is persisted.
+     * @param lines       answer lines since last sync
+     * @param counts      summary of source
+     * @param sourceChain hash chain link of source
+     * @param sourceRoot  Merkle root of source
+     */
+    void sync(List<String> lines, long[] counts, byte[] sourceChain, byte[] sourceRoot) throws IOException {
+        acquire();
+        try {
+            // Lock index segments of all AKs before sanning lock, in the lock order of doAnswer.
+            for (AnswerStore.Segment segment : answers.segments) {
+                segment.lock.lock();
+            }
+            lock.lock();
+            try {
+                checkVerified();
+                int size = answers.size() + lines.size();
+                if (counts.length != options.length) {
+                    throw new IllegalStateException("summary mismatch: " + counts.length + " options");
+                }
+                if (Arrays.stream(counts).sum() != size) {
+                    throw new IllegalStateException("summary mismatch: " + Arrays.stream(counts).sum() + " answers, expected " + size);
+                }
+
+                // Verify continuity and Merkle root.
+                List<byte[]> lineBytes = new ArrayList<>(lines.size());
+                byte[] link = chain;
+                for (String line : lines) {
+                    byte[] bytes = Util.toBytes(line);
+                    MessageDigest digest = Util.digest();
+                    digest.update(link);
+                    digest.update(bytes);
+                    digest.update((byte) '\n');
+                    link = digest.digest();
+                    lineBytes.add(bytes);
+                }
+                if (!Arrays.equals(link, sourceChain)) {
+                    throw new IllegalStateException("hash chain broken after version " + answers.size() + ": " + toHex(sourceChain));
+                }
+                if (!Arrays.equals(tree.root(lineBytes), sourceRoot)) {
+                    throw new IllegalStateException("Merkle root mismatch after version " + answers.size() + ": " + toHex(sourceRoot));
+                }
+
+                // Append answers.
+                byte[] ak = new byte[AnswerStore.KEY_LEN];
+                byte[] po = new byte[AnswerStore.KEY_LEN];
+                for (int ix = 0; ix < lines.size(); ix++) {
+                    byte[] bytes = lineBytes.get(ix);
+                    if (answers.add(parseAnswer(bytes, 0, bytes.length, ak, po), ak, po) == -1) {
+                        throw new IllegalStateException("duplicate anonymous key: " + toBase64(ak));
+                    }
+                    linkAnswer(lines.get(ix));
+                }
+                staged = new Result(size, counts.clone(), (size > 0) ? toISO8601(answers.ts(size - 1)) : "", reloaded);
+                publish(staged);
+                links.clear();
+            } finally {
+                lock.unlock();
+                for (AnswerStore.Segment segment : answers.segments) {
+                    segment.lock.unlock();
+                }
+            }
+            persist();
+        } finally {
+            release();
         }
-        return lastAnswerLine.isBlank() ? lastAnswerLine : lastAnswerLine.substring(ix, lastAnswerLine.indexOf(' '));
+    }
+
+    /** Result of committed answers. */
+    Result result() { return result.get(); }
+
+    /** Timestamp of last committed answer. */
+    String lastTS() { return result.get().lastTS; }
+
+    /** Publish result, unless a later result is already published. */
+    void publish(Result newResult) {
+        Result current;
+        do {
+            current = result.get();
+        } while ((current.version < newResult.version) && !result.compareAndSet(current, newResult));
     }
 
     //
@@ -167,26 +1070,14 @@ final class Sanning {
         return toBase64(akBytes);
     }
 
-    /**
-     * Generate protected option, PO.
-     * @param ak anonymous key
-     * @param p personal code
-     * @param o option
-     * @return
-     */
-    String generatePO(String ak, String p, String o) {
-        byte[] poBytes = hash(ak, p, o);
-        return toBase64(poBytes);
-    }
-
     /**
      * Read text lines up until and not including blank line.
-     * @return read text or null if in is EOS
+     * @return read text or null if data is EOS
      */
-    String readText(BufferedReader in) throws IOException {
+    String readText(ByteBuffer data) {
         StringBuilder sb = new StringBuilder();
         String line;
-        while ((line = in.readLine()) != null) {
+        while ((line = readLine(data)) != null) {
             if (line.equals("")) {
                 break;
             } else {
@@ -199,12 +1090,12 @@ final class Sanning {
 
     /**
      * Read option lines up until and not including blank line.
-     * @return read options or null if in is EOS
+     * @return read options or null if data is EOS
      */
-    String[] readOptions(BufferedReader in) throws IOException {
+    String[] readOptions(ByteBuffer data) {
         List<String> optionList = new ArrayList<>();
         String option;
-        while ((option = in.readLine()) != null) {
+        while ((option = readLine(data)) != null) {
             if (option.equals("")) {
                 break;
             } else {
@@ -215,30 +1106,210 @@ final class Sanning {
     }
 
     /**
-     * Read text lines up until and not including blank line.
+     * Read answer lines up until and not including blank line.
      * Answers are verified to not contain key duplicates.
-     * @return read answers or null if in is EOS
      */
-    StringBuilder readAnswers(BufferedReader in) throws IOException, IllegalStateException {
-        Set<String> keySet = new HashSet<>();
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = in.readLine()) != null) {
-            if (line.equals("")) {
-                break;
-            } else {
-                String ak = line.substring(Util.ISO_8601_LEN + 1, Util.ISO_8601_LEN + 1 + Sanning.AK_LEN);
-                if (!keySet.add(ak)) {
-                    throw new IllegalStateException("duplicate anonymous key: " + ak);
-                }
-                sb.append(line).append('\n');
+    void readAnswers(ByteBuffer data) throws IllegalStateException {
+        answers = new AnswerStore();
+        byte[] line = new byte[AnswerStore.MAX_LINE_LEN];
+        byte[] ak = new byte[AnswerStore.KEY_LEN];
+        byte[] po = new byte[AnswerStore.KEY_LEN];
+        int len;
+        while ((len = nextLine(data, line)) > 0) {
+            if (answers.add(parseAnswer(line, 0, len, ak, po), ak, po) == -1) {
+                throw new IllegalStateException("duplicate anonymous key: " + toBase64(ak));
+            }
+        }
+    }
+
+    /**
+     * Parse answer line: <ts> <ak>:<po>
+     * @param ak buffer for parsed AK
+     * @param po buffer for parsed PO
+     * @return parsed timestamp
+     */
+    static long parseAnswer(byte[] line, int offset, int len, byte[] ak, byte[] po) {
+        int end = offset + len;
+        int ix1 = indexOf(line, (byte) ' ', offset, end);
+        int ix2 = (ix1 != -1) ? indexOf(line, (byte) ':', ix1, end) : -1;
+        if ((ix2 == -1) ||
+            (Util.fromBase64(line, ix1 + 1, ix2 - ix1 - 1, ak) != AnswerStore.KEY_LEN) ||
+            (Util.fromBase64(line, ix2 + 1, end - ix2 - 1, po) != AnswerStore.KEY_LEN)) {
+            throw new IllegalStateException("invalid answer: " + new String(line, offset, len, StandardCharsets.UTF_8));
+        }
+        return Util.parseISO8601(line, offset, ix1 - offset);
+    }
+
+    /** Link answer line into hash chain and Merkle tree. */
+    void linkAnswer(String answerLine) {
+        byte[] line = Util.toBytes(answerLine, "\n");
+        linkAnswer(line, line.length - 1);
+    }
+
+    /**
+     * Link answer line into hash chain and Merkle tree.
+     * @param line answer line followed by newline
+     * @param len length of answer line
+     */
+    void linkAnswer(byte[] line, int len) {
+        MessageDigest digest = Util.digest();
+        digest.update(chain);
+        digest.update(line, 0, len + 1);
+        chain = digest.digest();
+        tree.append(line, len);
+    }
+
+    /**
+     * Add hash chain link of appended answer, dropping links before last committed version, which are no longer
+     * needed.
+     */
+    private void addLink(long version) {
+        links.add(new ChainLink(version, chain));
+        long committed = result.get().version;
+        ChainLink link = null;
+        while (!links.isEmpty() && (links.peekFirst().version <= committed)) {
+            link = links.removeFirst();
+        }
+        if (link != null) {
+            links.addFirst(link);
+        }
+    }
+
+    /** Hash chain link at version, not before last committed version. Locked by caller. */
+    byte[] chain(long version) {
+        if (version == staged.version) {
+            return chain;
+        }
+        for (ChainLink link : links) {
+            if (link.version == version) {
+                return link.chain;
+            }
+        }
+        throw new IllegalStateException("no hash chain link at version: " + version);
+    }
+
+    /** Hash chain link at version. */
+    static final class ChainLink {
+
+        final long version;
+        final byte[] chain;
+
+        ChainLink(long version, byte[] chain) {
+            this.version = version;
+            this.chain = chain;
+        }
+    }
+
+    /** Verify that sanning is verified and can be updated. */
+    void checkVerified() {
+        if (!verified) {
+            throw new IllegalStateException("sanning not verified: " + name);
+        }
+    }
+
+    /**
+     * Read line, without line terminator.
+     * @return read line or null if data is EOS
+     */
+    static String readLine(ByteBuffer data) {
+        if (!data.hasRemaining()) {
+            return null;
+        }
+        ByteBuffer line = data.slice();
+        int len = 0;
+        while (data.hasRemaining() && (data.get() != '\n')) {
+            len++;
+        }
+        if ((len > 0) && (line.get(len - 1) == '\r')) {
+            len--;
+        }
+        line.limit(len);
+        return StandardCharsets.UTF_8.decode(line).toString();
+    }
+
+    /**
+     * Read timestamp of last answer line, by searching backwards for the blank line ending answers.
+     * @return timestamp, empty if no answers or null if not found
+     */
+    static String readLastTS(ByteBuffer data) {
+        int answersOffset = data.position();
+        if (!data.hasRemaining() || (data.get(answersOffset) == '\n')) {
+            return "";
+        }
+        int ix = data.limit() - 1;
+        while ((ix > answersOffset) && !((data.get(ix) == '\n') && (data.get(ix - 1) == '\n'))) {
+            ix--;
+        }
+        if (ix == answersOffset) {
+            return null;
+        }
+        int end = --ix;
+        while ((ix > answersOffset) && (data.get(ix - 1) != '\n')) {
+            ix--;
+        }
+        int ix2 = ix;
+        while ((ix2 < end) && (data.get(ix2) != ' ')) {
+            ix2++;
+        }
+        if (ix2 == end) {
+            return null;
+        }
+        ByteBuffer ts = data.duplicate();
+        ts.position(ix).limit(ix2);
+        return StandardCharsets.UTF_8.decode(ts).toString();
+    }
+
+    /**
+     * Read next line into buffer, without line terminator.
+     * @return length of read line, 0 if line is blank or data is EOS
+     */
+    static int nextLine(ByteBuffer data, byte[] line) {
+        int len = 0;
+        byte b;
+        while (data.hasRemaining() && ((b = data.get()) != '\n')) {
+            if (len == line.length) {
+                throw new IllegalStateException("invalid answer: " + new String(line, StandardCharsets.UTF_8));
+            }
+            line[len++] = b;
+        }
+        return ((len > 0) && (line[len - 1] == '\r')) ? len - 1 : len;
+    }
+
+    /** Put bytes into buffer, writing buffer to channel when full. */
+    static void write(WritableByteChannel out, ByteBuffer buffer, byte[] bytes, int len) throws IOException {
+        if (len > buffer.remaining()) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+        }
+        if (len > buffer.remaining()) {
+            ByteBuffer bytesBuffer = ByteBuffer.wrap(bytes, 0, len);
+            while (bytesBuffer.hasRemaining()) {
+                out.write(bytesBuffer);
+            }
+        } else {
+            buffer.put(bytes, 0, len);
+        }
+    }
+
+    static int indexOf(byte[] bytes, byte b, int fromIx, int toIx) {
+        for (int ix = fromIx; ix < toIx; ix++) {
+            if (bytes[ix] == b) {
+                return ix;
             }
         }
-        return sb;
+        return -1;
     }
 
     /**
      * Generate seal for complete sanning.
+     * Hash seal is SHA-256 of title, text, options and answer lines.
+     * Chain seal is "chain:" followed by last link of a hash chain over answer lines:
+     * C0 = SHA-256(title, text, options), Cn = SHA-256(Cn-1, answer line n), so it is available after each answer
+     * without rehashing the sanning.
+     * Text lines are joined by newline, options are concatenated and answer lines include terminating newline.
      * @return seal as hex string
      */
     String genSeal() {
@@ -246,12 +1317,30 @@ final class Sanning {
         //       System public key can then be used for seal verification.
         //       Simple hash for now.
 
-        return toHex(hash(title, text, String.join("", options), String.join("", answers)));
+        if (chainSeal) {
+            return CHAIN_SEAL_PREFIX + toHex(chain);
+        }
+        MessageDigest digest = Util.newDigest(title, text, String.join("", options));
+        answers.update(digest);
+        return toHex(digest.digest());
     }
 
     public String toString() {
         StringBuilder sb = new StringBuilder();
+        appendHeader(sb, staged.counts);
+
+        // Answers.
+        answers.appendTo(sb);
+        sb.append('\n');
+
+        // Seal.
+        sb.append(genSeal());
+
+        return sb.toString();
+    }
 
+    /** Append title, text, options and summary, each followed by blank line. */
+    void appendHeader(StringBuilder sb, long[] counts) {
         // Title.
         sb.append(title).append('\n');
 
@@ -265,24 +1354,13 @@ final class Sanning {
         sb.append('\n');
 
         // Summary.
-        for (int ix = 0; ix < summary.length; ix++) {
-            sb.append(summary[ix]);
-            if (ix + 1 < summary.length) {
+        for (int ix = 0; ix < counts.length; ix++) {
+            sb.append(counts[ix]);
+            if (ix + 1 < counts.length) {
                 sb.append(":");
             }
         }
         sb.append("\n\n");
-
-        // Answers.
-        if (answers.length() > 0) {
-            sb.append(answers);
-        }
-        sb.append('\n');
-
-        // Seal.
-        sb.append(genSeal());
-
-        return sb.toString();
     }
 
     /**
@@ -328,6 +1406,7 @@ final class Sanning {
                         // Submit new answer.
                         int optionNum = Integer.parseInt(args[3]);
                         answer = sanning.doAnswer(ik, optionNum, p);
+                        sanning.persist();
                         msg = "Thank you!\nYou answer has been recorded.";
                     } else {
                         msg = "Previous answer found!";
@@ -340,12 +1419,10 @@ final class Sanning {
         }
 
         // Summary.
-        int total = 0;
-        for (int count : sanning.summary) {
-            total += count;
-        }
-        for (int ix = 0; ix < sanning.summary.length; ix++) {
-            int count = sanning.summary[ix];
+        Result result = sanning.result();
+        long total = result.total;
+        for (int ix = 0; ix < result.counts.length; ix++) {
+            long count = result.counts[ix];
             float percentage = total > 0 ? (float)count * 100 / total : 0f;
             System.out.printf("%-16s %6d  %6.2f%%%n", sanning.options[ix], count, percentage);
         }
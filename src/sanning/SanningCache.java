@@ -0,0 +1,72 @@
+package sanning;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Sannings with loaded answers, in least recently used order. When estimated memory of loaded answers exceeds the
+ * memory budget, answers of least recently used sannings are unloaded. Header and result of a sanning are always
+ * loaded, so memory use scales with the sannings in use rather than with all sannings.
+ */
+final class SanningCache {
+
+    /** Memory budget for loaded answers in megabytes, 0 to keep answers of all sannings loaded. */
+    static final long MEMORY_BUDGET = Long.getLong("sanning.memoryBudget", 0) << 20;
+
+    private final LinkedHashMap<String,Sanning> loaded;
+
+    SanningCache() {
+        loaded = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** Answers are loaded lazily when there is a memory budget. */
+    boolean isLazy() { return MEMORY_BUDGET > 0; }
+
+    /**
+     * Sanning answers have been used: mark sanning as most recently used and unload least recently used sannings
+     * while over budget. Sannings with answers in use are not unloaded.
+     */
+    void use(Sanning sanning) {
+        if (!isLazy()) {
+            return;
+        }
+
+        // Select sannings to unload.
+        List<Sanning> unloads = new ArrayList<>();
+        synchronized (this) {
+            loaded.put(sanning.name, sanning);
+            long memory = 0;
+            for (Sanning s : loaded.values()) {
+                memory += s.memory();
+            }
+            for (Iterator<Sanning> it = loaded.values().iterator(); (memory > MEMORY_BUDGET) && it.hasNext(); ) {
+                Sanning s = it.next();
+                if (s != sanning) {
+                    memory -= s.memory();
+                    unloads.add(s);
+                    it.remove();
+                }
+            }
+        }
+
+        // Unload, outside lock since checkpoint writes sanning file.
+        for (Sanning s : unloads) {
+            boolean unloaded;
+            try {
+                unloaded = s.unload();
+            } catch (IOException e) {
+                System.out.println("ERROR: unload failed: " + s.name + ": " + e.getMessage());
+                unloaded = false;
+            }
+            if (!unloaded) {
+                synchronized (this) {
+                    loaded.put(s.name, s);
+                }
+            }
+        }
+    }
+
+}
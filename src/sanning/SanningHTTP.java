@@ -6,59 +6,129 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.net.ssl.SSLContext;
+import sanning.http.Gzip;
 import sanning.http.HTTPProcessor;
 import sanning.http.HTTPRequest;
 import sanning.http.HTTPResponse;
 import sanning.http.HTTPServer;
+import sanning.http.HeaderBlock;
+import sanning.http.NIOHTTPServer;
 
 final class SanningHTTP implements HTTPProcessor {
 
-    static final Pattern REQUEST_PATTERN = Pattern.compile("(?<method>GET|POST) /*(?<name>[^ /]*)(/?(?<op>[^ /]+)?)");
+    /** Serve sannings read-only while verified in background, instead of verifying before serving. */
+    static final boolean VERIFY_ASYNC = Boolean.getBoolean("sanning.verifyAsync");
+
+    /** HTTP server engine: "blocking" for thread per connection, "nio" for selector with thread per request. */
+    static final String ENGINE = System.getProperty("sanning.engine", "blocking");
+
+    /** Threads of connections and requests: "platform" for a fixed pool, "virtual" for a virtual thread per task. */
+    static final String THREADS = System.getProperty("sanning.threads", "platform");
+
+    static final HeaderBlock HTML = new HeaderBlock("Content-Type", "text/html; charset=UTF-8");
+    static final HeaderBlock TEXT = new HeaderBlock("Content-Type", "text/plain; charset=UTF-8");
+    static final HeaderBlock NO_CACHE = new HeaderBlock("Pragma", "no-cache",
+                                                        "Cache-Control", "no-cache",
+                                                        "Expires", "Fri, 1 Jan 1971 00:00:00 GMT");
+    static final HeaderBlock REVALIDATE = new HeaderBlock("Cache-Control", "no-cache");
+
+    /** Minimum size of body compressed for a single response. */
+    static final int GZIP_MIN_SIZE = 1024;
+
+    static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).
+        withZone(ZoneOffset.UTC);
+    /** Server start, in whole seconds. Validators include it, since rendering may change between server versions. */
+    static final long STARTED = System.currentTimeMillis() / 1000 * 1000;
+
+    /** Cookie name of order token, of answer waiting for authentication. */
+    static final String ORDER_COOKIE = "order";
+
+    static final Pattern REQUEST_PATTERN = Pattern.compile("(?<method>GET|POST) /*(?<name>[^ /?]*)(/?(?<op>[^ /?]+)?)(\\?(?<query>[^ ]*))?");
+    static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(?<first>\\d{0,18})-(?<last>\\d{0,18})");
 
     final List<Sanning> sannings;
     final Map<String,Sanning> sanningMap;
-    final Map<String,String> templateMap;
-    final Map<String,byte[]> imageMap;
+    final SanningCache sanningCache;
+    final Map<String,Template> templateMap;
+    final Map<String,Page> pageCache;  // Unanswered sanning page by sanning name, of latest rendered result.
+    final Assets assets;
     final Authenticator authhenticator;
+    final Map<String,CompletableFuture<Answer>> pendingAnswers;  // Answers waiting for authentication, by order token.
+    final Executor executor;
 
-    SanningHTTP(String authTemplate, Authenticator authenticator) {
+    SanningHTTP(String authTemplate, Authenticator authenticator, Executor executor) {
         this.authhenticator = authenticator;
+        this.pendingAnswers = new ConcurrentHashMap<>();
+        this.executor = executor;
 
-        // Load sannings.
-        sannings = new ArrayList<>();
-        sanningMap = new HashMap<>();
+        // Load sannings in parallel, listed in file name order.
+        sanningMap = new ConcurrentHashMap<>();
+        sanningCache = new SanningCache();
         //noinspection ConstantConditions
-        for (String fileName : Stream.of(new File("sannings").listFiles()).sorted().
-                                     filter(file -> !file.isDirectory()).map(File::getName).
-                                     collect(Collectors.toSet())) {
-            loadSanning(fileName.substring(0, fileName.length() - 4));
-        }
+        sannings = new CopyOnWriteArrayList<>(Stream.of(new File("sannings").listFiles()).sorted().
+                                                     filter(file -> !file.isDirectory() && file.getName().endsWith(".txt")).
+                                                     map(file -> file.getName().substring(0, file.getName().length() - 4)).
+                                                     collect(Collectors.toList()).parallelStream().
+                                                     map(this::loadSanning).
+                                                     collect(Collectors.toList()));
+
+        // Load static assets, before templates referring to them.
+        assets = new Assets("images", "css", "js");
 
         // Load templates.
         templateMap = new HashMap<>();
+        pageCache = new ConcurrentHashMap<>();
         loadTemplate(authTemplate, "auth");
         loadTemplate("confirm-bankid", "confirm");
         loadTemplate("error");
         loadTemplate("list");
+        loadTemplate("status");
         loadTemplate("sanning");
 
-        // Load images.
-        imageMap = new HashMap<>();
-        loadImage("BankID_logo.svg");
+        // Verify in background, once sannings are listed.
+        if (VERIFY_ASYNC) {
+            sannings.forEach(this::verifyAsync);
+        }
     }
 
     public void process(HTTPRequest request, HTTPResponse response) {
+        // Serve static asset.
+        String line = request.line;
+        if (line.startsWith("GET /")) {
+            int end = line.indexOf(' ', 4);
+            int queryStart = line.indexOf('?', 4);
+            end = (end == -1) ? line.length() : end;
+            end = ((queryStart != -1) && (queryStart < end)) ? queryStart : end;
+            if (assets.serve(line.substring(4, end), request, response)) {
+                return;
+            }
+        }
+
         // Parse method and path.
         Matcher m = REQUEST_PATTERN.matcher(request.line);
         if (!m.find()) {
@@ -67,26 +137,20 @@ final class SanningHTTP implements HTTPProcessor {
         String method = m.group("method");
         String name = m.group("name");
         String op = m.group("op");
+        String query = m.group("query");
 
-        // Dispatch.
-        if ((op != null) && op.endsWith(".svg")) {
-            // Process SVG image.
-            response.headers.setValue("Content-Type", "image/svg+xml");
-            response.body = imageMap.get(op);
-        } else {
-            // Process Sanning application request.
-            processAppRequest(request, response, method, name, op);
-        }
+        // Process Sanning application request.
+        processAppRequest(request, response, method, name, op, query);
 
-        // No cache.
-        response.headers.addValue("Pragma", "no-cache");
-        response.headers.setValue("Cache-Control", "no-cache");
-        response.headers.setValue("Expires", "Fri, 1 Jan 1971 00:00:00 GMT");
+        // No cache, unless validated.
+        if (response.headers.singleValue("ETag") == null) {
+            response.headerBlocks.add(NO_CACHE);
+        }
     }
 
-    void processAppRequest(HTTPRequest request, HTTPResponse response, String method, String name, String op) {
-        response.headers.setValue("Content-Type", "text/html; charset=UTF-8");
-        CharSequence responseBody = null;
+    void processAppRequest(HTTPRequest request, HTTPResponse response, String method, String name, String op, String query) {
+        response.contentType = HTML;
+        byte[] responseBody = null;
         String error = null;
         if ("GET".equals(method)) {
             if (name.isEmpty()) {
@@ -94,16 +158,87 @@ final class SanningHTTP implements HTTPProcessor {
                 responseBody = renderList();
             } else {
                 if ("result".equals(op)) {
-                    // Download result.
-                    response.headers.setValue("Content-Type", "text/plain; charset=UTF-8");
+                    // Download result, streamed, unless not modified since result version.
+                    response.contentType = TEXT;
+                    response.headerBlocks.add(REVALIDATE);
+                    Sanning sanning = sanningMap.get(name);
+                    Result sanningResult = sanning.result();
+                    boolean gzip = Gzip.accepted(request, response) && (request.headers.singleValue("Range") == null);
+                    String etag = etag(sanningResult);
+                    String lastModified = lastModified(sanningResult);
+                    if (notModified(request, response, gzip ? Gzip.etag(etag) : etag, lastModified)) {
+                        return;
+                    }
                     try {
-                        responseBody = sanningMap.get(name).persist();
+                        downloadResult(request, response, sanning, gzip, etag, lastModified);
                     } catch (IOException e) {
-                        throw new RuntimeException("persist failed: " + e);
+                        throw new RuntimeException("download failed: " + e);
+                    }
+                    sanningCache.use(sanning);
+                    return;
+                } else if ("since".equals(op)) {
+                    // Answers since version or timestamp, for mirrors.
+                    response.contentType = TEXT;
+                    String version = (query != null) ? HTTPRequest.extractParameter(query, "version") : null;
+                    String ts = (query != null) ? HTTPRequest.extractParameter(query, "ts") : null;
+                    if ((version == null) && (ts == null)) {
+                        throw new IllegalArgumentException("invalid request (version or ts not present): " + request.line);
+                    }
+                    Sanning sanning = sanningMap.get(name);
+                    try {
+                        if (version == null) {
+                            byte[] tsBytes = toBytes(URLDecoder.decode(ts, StandardCharsets.UTF_8).replace(' ', '+'));
+                            version = String.valueOf(sanning.version(Util.parseISO8601(tsBytes, 0, tsBytes.length)));
+                        }
+                        responseBody = toBytes(sanning.answersSince(Integer.parseInt(version)));
+                        if (Gzip.accepted(request, response) && (responseBody.length >= GZIP_MIN_SIZE)) {
+                            responseBody = Gzip.compress(responseBody);
+                            response.headerBlocks.add(Gzip.CONTENT_ENCODING);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException("load failed: " + e);
+                    }
+                    sanningCache.use(sanning);
+                } else if ("proof".equals(op)) {
+                    // Inclusion proof of answer.
+                    response.contentType = TEXT;
+                    String ak = (query != null) ? HTTPRequest.extractParameter(query, "ak") : null;
+                    if (ak == null) {
+                        throw new IllegalArgumentException("invalid request (ak not present): " + request.line);
+                    }
+                    Sanning sanning = sanningMap.get(name);
+                    try {
+                        String proof = sanning.proof(URLDecoder.decode(ak, StandardCharsets.UTF_8).replace(' ', '+'));
+                        responseBody = (proof != null) ? toBytes(proof) : null;
+                    } catch (IOException e) {
+                        throw new RuntimeException("load failed: " + e);
+                    }
+                    sanningCache.use(sanning);
+                    if (responseBody == null) {
+                        response.statusCode = 404;
+                        response.reasonPhrase = "Not Found";
+                        responseBody = toBytes("no answer found: ", ak);
+                    }
+                } else if ("status".equals(op)) {
+                    // State of answer waiting for authentication, by order token in cookie.
+                    String order = cookie(request, ORDER_COOKIE);
+                    CompletableFuture<Answer> pending = (order != null) ? pendingAnswers.get(order) : null;
+                    if (pending == null) {
+                        error = "No answer waiting for authentication!";
+                    } else {
+                        responseBody = renderStatus(sanningMap.get(name), pending, response);
                     }
                 } else {
-                    // Show sanning.
-                    responseBody = renderSanning(name, Answer.EMPTY);
+                    // Show sanning, unless not modified since page version.
+                    response.headerBlocks.add(REVALIDATE);
+                    Page page = sanningPage(name);
+                    boolean gzip = Gzip.accepted(request, response);
+                    if (gzip) {
+                        response.headerBlocks.add(Gzip.CONTENT_ENCODING);
+                    }
+                    if (!notModified(request, response, gzip ? page.gzipEtag : page.etag, page.lastModified)) {
+                        responseBody = gzip ? page.gzipBytes : page.bytes;
+                    }
                 }
             }
         } else if ("POST".equals(method)) {
@@ -126,31 +261,34 @@ final class SanningHTTP implements HTTPProcessor {
                                               "TITLE", sanning.title,
                                               "OPTION", optionStr);
             } else if ("confirm".equals(op)) {
-                String orderRef = (authhenticator != null) ? authhenticator.initAuth(ik, request.remoteAddress.getAddress().getHostAddress()) : "";
-                if (orderRef != null) {
-                    responseBody = renderTemplate("confirm",
-                                                  "TITLE", sanning.title,
-                                                  "PRETTY_OPTION", prettyOption,
-                                                  "IK", ik,
-                                                  "OPTION", optionStr,
-                                                  "ORDER_REF", orderRef);
-                } else {
-                    error = "Authentication failed!";
-                }
+                // Start authentication, collected in background.
+                String order = (authhenticator != null) ? authhenticator.initAuth(ik, request.remoteAddress.getAddress().getHostAddress()).token : "";
+                responseBody = renderTemplate("confirm",
+                                              "TITLE", sanning.title,
+                                              "PRETTY_OPTION", prettyOption,
+                                              "IK", ik,
+                                              "OPTION", optionStr,
+                                              "ORDER", order);
 
             } else if ("answer".equals(op)) {
-                if ((authhenticator != null) && !authhenticator.checkAuth(request.extractBodyParameter("orderRef"))) {
-                    error = "Authentication failed!";
+                String p = request.extractBodyParameter("p");
+                if (authhenticator != null) {
+                    // Submit answer option to sanning when authenticated.
+                    Authenticator.Order order = authhenticator.order(request.extractBodyParameter("order"));
+                    if (order == null) {
+                        error = "Authentication failed!";
+                    } else {
+                        responseBody = renderAnswer(sanning, order.token, answerWhenAuthenticated(order, sanning, option, p), response);
+                    }
                 } else {
-                    String p = request.extractBodyParameter("p");
-
                     // Submit answer option to sanning.
                     try {
-                        Answer answer = sanning.doAnswer(ik, Integer.parseInt(optionStr), p);
+                        Answer answer = sanning.doAnswer(ik, option, p);
                         responseBody = renderSanning(name, answer);
-                    } catch (IOException e) {
+                    } catch (IOException | IllegalStateException e) {
                         error = e.getMessage();
                     }
+                    sanningCache.use(sanning);
                 }
             }
         }
@@ -161,38 +299,226 @@ final class SanningHTTP implements HTTPProcessor {
         }
 
         // Body content.
-        response.body = toBytes(responseBody);
+        response.body = responseBody;
+    }
+
+    /**
+     * Download sanning file, without writing it. Sanning file is transferred when it contains the committed answers,
+     * with support for a single byte range, otherwise sanning is rendered in chunks. A range is ignored, and the whole
+     * file transferred, unless If-Range matches the entity tag or last modified date. Compressed, the compressed copy
+     * of sanning file is transferred, otherwise render is compressed while written.
+     */
+    void downloadResult(HTTPRequest request, HTTPResponse response, Sanning sanning, boolean gzip, String etag,
+                        String lastModified) throws IOException {
+        if (gzip) {
+            FileChannel file = sanning.openCompressedFile();
+            if (file == null) {
+                response.bodyWriter = Gzip.compress(sanning.render()::writeTo);
+            } else {
+                response.bodyLength = file.size();
+                response.bodyWriter = transfer(file, 0, file.size(), sanning.name);
+            }
+            response.headerBlocks.add(Gzip.CONTENT_ENCODING);
+            return;
+        }
+
+        FileChannel file = sanning.openFile();
+        if (file == null) {
+            response.bodyWriter = sanning.render()::writeTo;
+            return;
+        }
+
+        // Byte range.
+        long size = file.size();
+        long from = 0;
+        long to = size;
+        response.headers.setValue("Accept-Ranges", "bytes");
+        String range = request.headers.singleValue("Range");
+        String ifRange = request.headers.singleValue("If-Range");
+        if ((ifRange != null) && !ifRange.equals(etag) && !ifRange.equals(lastModified)) {
+            range = null;
+        }
+        Matcher m = (range != null) ? RANGE_PATTERN.matcher(range) : null;
+        if ((m != null) && m.matches() && !(m.group("first").isEmpty() && m.group("last").isEmpty())) {
+            if (m.group("first").isEmpty()) {
+                from = Math.max(0, size - Long.parseLong(m.group("last")));
+            } else {
+                from = Long.parseLong(m.group("first"));
+                to = m.group("last").isEmpty() ? size : Math.min(size, Long.parseLong(m.group("last")) + 1);
+            }
+            if (from >= to) {
+                file.close();
+                response.statusCode = 416;
+                response.reasonPhrase = "Range Not Satisfiable";
+                response.headers.setValue("Content-Range", "bytes */" + size);
+                return;
+            }
+            response.statusCode = 206;
+            response.reasonPhrase = "Partial Content";
+            response.headers.setValue("Content-Range", "bytes " + from + "-" + (to - 1) + "/" + size);
+        }
+
+        // Transfer file.
+        response.bodyLength = to - from;
+        response.bodyWriter = transfer(file, from, to, sanning.name);
     }
 
-    String renderSanning(String name, Answer answer) {
+    /** Writer of file part, closing file when written. */
+    static HTTPResponse.BodyWriter transfer(FileChannel file, long start, long end, String name) {
+        return out -> {
+            try (FileChannel in = file) {
+                for (long position = start; position < end; ) {
+                    long count = in.transferTo(position, end - position, out);
+                    if (count <= 0) {
+                        throw new IOException("transfer failed: " + name);
+                    }
+                    position += count;
+                }
+            }
+        };
+    }
+
+    /**
+     * Unanswered sanning page. Page is rendered once per result version and cached, so until next answer is
+     * committed the encoded page is returned as is.
+     */
+    Page sanningPage(String name) {
         Sanning sanning = sanningMap.get(name);
+        Result sanningResult = sanning.result();
+        Page page = pageCache.get(name);
+        if ((page == null) || (page.version != sanningResult.version) || (page.reloaded != sanningResult.reloaded)) {
+            // Page of an earlier load is replaced, even at a later version.
+            Page newPage = new Page(sanningResult, renderSanning(sanning, sanningResult, Answer.EMPTY),
+                                    etag(sanningResult), lastModified(sanningResult));
+            page = pageCache.merge(name, newPage, (oldPage, p) -> oldPage.isAfter(p) ? oldPage : p);
+        }
+        return page;
+    }
 
-        // SUMMARY html.
-        int total = 0;
-        for (int count : sanning.summary) {
-            total += count;
+    /**
+     * Answer of authentication order, submitted when order is authenticated: at once if already authenticated,
+     * otherwise on executor when authenticated. Answer is submitted once per order and kept for status requests until
+     * order expires.
+     */
+    CompletableFuture<Answer> answerWhenAuthenticated(Authenticator.Order order, Sanning sanning, int option, String p) {
+        CompletableFuture<Answer> answer = new CompletableFuture<>();
+        CompletableFuture<Answer> pending = pendingAnswers.putIfAbsent(order.token, answer);
+        if (pending != null) {
+            return pending;
+        }
+
+        Consumer<Boolean> submit = authenticated -> {
+            try {
+                if (!authenticated) {
+                    throw new IllegalStateException("Authentication failed!");
+                }
+                answer.complete(sanning.doAnswer(order.ik, option, p));
+            } catch (IOException | RuntimeException e) {
+                answer.completeExceptionally(e);
+            }
+            sanningCache.use(sanning);
+        };
+        if (order.completion.isDone()) {
+            order.completion.thenAccept(submit);
+        } else {
+            order.completion.thenAcceptAsync(submit, executor);
+        }
+        CompletableFuture.delayedExecutor(Authenticator.ORDER_TTL, TimeUnit.MILLISECONDS).execute(() -> pendingAnswers.remove(order.token));
+        return answer;
+    }
+
+    /**
+     * Render posted answer waiting for authentication: answered sanning, error, or status page refreshed until
+     * answered. Order token of status is set in cookie, to keep it out of URLs.
+     */
+    byte[] renderAnswer(Sanning sanning, String order, CompletableFuture<Answer> pending, HTTPResponse response) {
+        if (!pending.isDone()) {
+            response.headers.setValue("Set-Cookie", orderCookie(sanning, order, Authenticator.ORDER_TTL / 1000));
+            return renderStatus(sanning, pending, response);
+        }
+        try {
+            return renderSanning(sanning.name, pending.join());
+        } catch (CompletionException e) {
+            return renderTemplate("error", "MESSAGE", e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Render status of answer waiting for authentication: pending, recorded or failed, without answer option. Order
+     * cookie is removed once answered.
+     */
+    byte[] renderStatus(Sanning sanning, CompletableFuture<Answer> pending, HTTPResponse response) {
+        if (!pending.isDone()) {
+            return renderTemplate("status",
+                                  "REFRESH", "  <meta http-equiv=\"refresh\" content=\"2; url=/" + sanning.name + "/status\">\n",
+                                  "TITLE", sanning.title,
+                                  "MESSAGE", "Waiting for Mobile BankID...<br><br>\n\n" +
+                                             "  Complete the login in Mobile BankID to record your answer.<br>\n" +
+                                             "  This page is updated when your answer has been recorded.",
+                                  "SANNING", sanning.name,
+                                  "LINK", "Abort");
+        }
+        response.headers.setValue("Set-Cookie", orderCookie(sanning, "", 0));
+        try {
+            pending.join();
+        } catch (CompletionException e) {
+            return renderTemplate("error", "MESSAGE", e.getCause().getMessage());
+        }
+        return renderTemplate("status",
+                              "REFRESH", "",
+                              "TITLE", sanning.title,
+                              "MESSAGE", "Thank you!<br>Your answer has been recorded.",
+                              "SANNING", sanning.name,
+                              "LINK", "Back");
+    }
+
+    /** Order token cookie, sent only with status requests of sanning and not readable by scripts. */
+    static String orderCookie(Sanning sanning, String order, int maxAge) {
+        return ORDER_COOKIE + "=" + order + "; Path=/" + sanning.name + "/status; Max-Age=" + maxAge + "; HttpOnly; SameSite=Strict";
+    }
+
+    /** Value of request cookie, or null if not present. */
+    static String cookie(HTTPRequest request, String name) {
+        for (String cookies : request.headers.multiValue("Cookie")) {
+            for (String cookie : cookies.split(";")) {
+                cookie = cookie.trim();
+                if (cookie.startsWith(name) && (cookie.length() > name.length()) && (cookie.charAt(name.length()) == '=')) {
+                    return cookie.substring(name.length() + 1);
+                }
+            }
         }
+        return null;
+    }
+
+    byte[] renderSanning(String name, Answer answer) {
+        Sanning sanning = sanningMap.get(name);
+        return renderSanning(sanning, sanning.result(), answer);
+    }
+
+    byte[] renderSanning(Sanning sanning, Result sanningResult, Answer answer) {
+        String name = sanning.name;
+
+        // SUMMARY html.
+        long total = sanningResult.total;
         StringBuilder summary = new StringBuilder();
-        for (int ix = 0; ix < sanning.summary.length; ix++) {
-            int count = sanning.summary[ix];
-            float percentage = total > 0 ? (float)count * 100 / total : 0f;
-            summary.append(String.format("<tr><td>%s</td><td class=\"right\">%d</td><td class=\"right\">%.2f%%</td></tr>\n",
-                                         sanning.options[ix], count, percentage));
+        for (int ix = 0; ix < sanningResult.counts.length; ix++) {
+            long count = sanningResult.counts[ix];
+            summary.append("<tr><td>").append(sanning.options[ix]).append("</td><td class=\"right\">").append(count);
+            appendPercentage(summary.append("</td><td class=\"right\">"), count, total).append("%</td></tr>\n");
         }
-        summary.append(String.format("<tr><td colspan=\"3\" class=\"fill\"/></td></tr>\n" +
-                                     "<tr><td>Total:</td><td>%d</td></tr>\n", total));
+        summary.append("<tr><td colspan=\"3\" class=\"fill\"/></td></tr>\n<tr><td>Total:</td><td>").append(total).append("</td></tr>\n");
 
         // RESULT data file href.
         String result = "<a href=/" + name + "/result>" + name + "</a>";
 
         // LAST_UPDATED
-        String lastUpdated = sanning.lastTS();
+        String lastUpdated = sanningResult.lastTS;
         lastUpdated = lastUpdated.isEmpty() ? "" : "Last Updated: " + lastUpdated;
 
         StringBuilder options = new StringBuilder();
         int value = 0;
         for (String option : sanning.options) {
-            options.append(String.format("    <li><button name=\"option\" value=\"%d\">%s</button></li>\n", value++, option));
+            options.append("    <li><button name=\"option\" value=\"").append(value++).append("\">").append(option).append("</button></li>\n");
         }
 
         // Render unanswered sanning.
@@ -206,38 +532,118 @@ final class SanningHTTP implements HTTPProcessor {
                               "MESSAGE", answer.isOld ? "You have already answered!" : "Thank you!<br>Your answer has been recorded.",
                               "PRETTY_OPTION", (answer.o != null) ? answer.o : answer.po,
                               "REF", answer.ak,
+                              "PROOF", "/" + name + "/proof?ak=" + URLEncoder.encode(answer.ak, StandardCharsets.UTF_8),
                               "ANSWER_TIME", answer.ts,
                               "SUMMARY", summary,
-                              "SUMMARY", summary,
                               "RESULT", result,
                               "LAST_UPDATED", lastUpdated);
     }
 
-    String renderList() {
+    byte[] renderList() {
         StringBuilder list = new StringBuilder();
         for (Sanning sanning : sannings) {
-            list.append(String.format("  <li><a href=\"%s\">%s</a></li>\n", sanning.name, sanning.title));
+            list.append("  <li><a href=\"").append(sanning.name).append("\">").append(sanning.title).append("</a></li>\n");
         }
 
         return renderTemplate("list",
                               "LIST", list);
     }
 
-    String renderTemplate(String name, CharSequence... values) {
-        String template = templateMap.get(name);
-        for (int ix = 0; ix < values.length; ix += 2) {
-            template = template.replace("${" + values[ix] + "}", values[ix + 1]);
+    byte[] renderTemplate(String name, CharSequence... values) {
+        return templateMap.get(name).render(values);
+    }
+
+    /**
+     * Set validators of response and evaluate conditional request. If-None-Match takes precedence over
+     * If-Modified-Since.
+     * @return true if not modified, with status 304 set and no body to send
+     */
+    static boolean notModified(HTTPRequest request, HTTPResponse response, String etag, String lastModified) {
+        response.headers.setValue("ETag", etag);
+        response.headers.setValue("Last-Modified", lastModified);
+
+        boolean notModified = false;
+        List<String> ifNoneMatch = request.headers.multiValue("If-None-Match");
+        if (!ifNoneMatch.isEmpty()) {
+            for (String tags : ifNoneMatch) {
+                for (String tag : tags.split(",")) {
+                    tag = tag.trim();
+                    tag = tag.startsWith("W/") ? tag.substring(2) : tag;
+                    notModified |= tag.equals(etag) || tag.equals("*");
+                }
+            }
+        } else {
+            String ifModifiedSince = request.headers.singleValue("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                try {
+                    notModified = ifModifiedSince.equals(lastModified) ||
+                                  !Instant.from(HTTP_DATE.parse(ifModifiedSince)).isBefore(Instant.from(HTTP_DATE.parse(lastModified)));
+                } catch (DateTimeParseException e) {
+                    // Invalid date, ignored.
+                }
+            }
+        }
+
+        if (notModified) {
+            response.statusCode = 304;
+            response.reasonPhrase = "Not Modified";
+            response.contentType = null;
         }
-        return template;
+        return notModified;
     }
 
-    /** Load sanning text file with specified name. */
-    void loadSanning(String name) {
+    /** Entity tag of sanning page and result at result version, of server start and of reload after commit failure. */
+    static String etag(Result sanningResult) {
+        String reloaded = (sanningResult.reloaded != 0) ? "-" + Long.toString(sanningResult.reloaded, 36) : "";
+        return "\"" + sanningResult.version + "-" + Long.toString(STARTED / 1000, 36) + reloaded + "\"";
+    }
+
+    /** Last modified date of sanning page and result: last answer, or server start or reload if later. */
+    static String lastModified(Result sanningResult) {
+        long millis = Math.max(STARTED, sanningResult.reloaded);
+        if (!sanningResult.lastTS.isEmpty()) {
+            byte[] ts = toBytes(sanningResult.lastTS);
+            millis = Math.max(millis, Util.parseISO8601(ts, 0, ts.length) >> 12);
+        }
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    /** Append percentage of count in total with two decimals, rounded half up. */
+    static StringBuilder appendPercentage(StringBuilder sb, long count, long total) {
+        long hundredths = (total > 0) ? (count * 20000 + total) / (2 * total) : 0;
+        sb.append(hundredths / 100).append('.');
+        return sb.append((char) ('0' + hundredths / 10 % 10)).append((char) ('0' + hundredths % 10));
+    }
+
+    /**
+     * Load sanning text file with specified name. Sanning is verified when loaded, unless verify async. With lazy
+     * sanning cache, only header and result are loaded, unless there is a journal to replay.
+     */
+    Sanning loadSanning(String name) {
         Sanning sanning = sanningMap.get(name);
         if (sanning == null) {
-            try { sanning = new Sanning(name, "sannings"); } catch (IOException e) { throw new RuntimeException(e); }
-            sannings.add(sanning);
+            try { sanning = new Sanning(name, "sannings", !sanningCache.isLazy(), !VERIFY_ASYNC); } catch (IOException e) { throw new RuntimeException(e); }
             sanningMap.put(name, sanning);
+            if (sanning.answers != null) {
+                sanningCache.use(sanning);
+            }
+        }
+        return sanning;
+    }
+
+    /**
+     * Verify loaded sanning in background. Sanning is removed from list and map if verification fails. Sannings not
+     * loaded are verified when loaded.
+     */
+    void verifyAsync(Sanning sanning) {
+        if (sanning.answers != null) {
+            CompletableFuture.runAsync(sanning::verify).exceptionally(e -> {
+                System.out.println("ERROR: " + sanning.name + ": " + e.getCause().getMessage());
+                sannings.remove(sanning);
+                sanningMap.remove(sanning.name, sanning);
+                pageCache.remove(sanning.name);
+                return null;
+            });
         }
     }
 
@@ -250,19 +656,22 @@ final class SanningHTTP implements HTTPProcessor {
         //noinspection ConstantConditions
         String template = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/shtml/" + name + ".shtml"))).
             lines().parallel().collect(Collectors.joining("\n"));
-        templateMap.put((alias.length > 0) ? alias[0] : name, template);
+        templateMap.put((alias.length > 0) ? alias[0] : name, new Template(assets.rewrite(template)));
     }
 
-    /** Load image with specified file name. */
-    @SuppressWarnings("SameParameterValue")
-    void loadImage(String fileName) {
-        try {
-            //noinspection ConstantConditions
-            byte[] imageBytes = getClass().getResourceAsStream("/images/" + fileName).readAllBytes();
-            imageMap.put(fileName, imageBytes);
-        } catch (IOException e) {
-            throw new RuntimeException("error loading image: " + e.getMessage(), e);
+    /**
+     * Executor of connections and requests. Virtual threads (Java 21) are created by reflection, so the source level
+     * is unchanged, with fallback to a fixed pool of platform threads when the runtime does not support them.
+     */
+    static Executor newExecutor() {
+        if ("virtual".equals(THREADS)) {
+            try {
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("WARNING: virtual threads not supported, using platform threads");
+            }
         }
+        return Executors.newFixedThreadPool(16);
     }
 
     public static void main(String[] args) throws Throwable {
@@ -289,10 +698,39 @@ final class SanningHTTP implements HTTPProcessor {
         String authTemplate = (authenticator != null) ? "auth-bankid" : "auth-test";
 
         // HTTP server.
-        Executor executor = Executors.newFixedThreadPool(16);
-        HTTPProcessor sannProcessor = new SanningHTTP(authTemplate, authenticator);
-        HTTPServer httpServer = new HTTPServer(port, sannProcessor, 20000, 60000, sslContext, executor);
+        Executor executor = newExecutor();
+        HTTPProcessor sannProcessor = new SanningHTTP(authTemplate, authenticator, executor);
+        Runnable httpServer = "nio".equals(ENGINE) ?
+                              new NIOHTTPServer(port, sannProcessor, 20000, 60000, sslContext, executor) :
+                              new HTTPServer(port, sannProcessor, 20000, 60000, sslContext, executor);
         executor.execute(httpServer);
     }
 
+    /** Rendered page of a result version, compressed and with validators. */
+    static final class Page {
+
+        final long version;
+        final long reloaded;
+        final byte[] bytes;
+        final byte[] gzipBytes;
+        final String etag;
+        final String gzipEtag;
+        final String lastModified;
+
+        Page(Result sanningResult, byte[] bytes, String etag, String lastModified) {
+            this.version = sanningResult.version;
+            this.reloaded = sanningResult.reloaded;
+            this.bytes = bytes;
+            this.gzipBytes = Gzip.compress(bytes);
+            this.etag = etag;
+            this.gzipEtag = Gzip.etag(etag);
+            this.lastModified = lastModified;
+        }
+
+        /** Page is of a later reload, or of a later version of the same load. */
+        boolean isAfter(Page page) {
+            return (reloaded > page.reloaded) || ((reloaded == page.reloaded) && (version > page.version));
+        }
+    }
+
 }
@@ -0,0 +1,119 @@
+package sanning;
+
+import static sanning.Util.toHex;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Local mirror of a sanning served by sanning HTTP server. Mirror is created from complete sanning file and then
+ * kept up to date with answers appended since last sync, verified to continue hash chain of source.
+ */
+final class SanningMirror {
+
+    static final int TIMEOUT = 30000;
+
+    final String url;
+    final File file;
+    final HttpClient httpClient;
+
+    SanningMirror(String url, File file) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.file = file;
+        httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(TIMEOUT)).build();
+    }
+
+    /**
+     * Open mirror, downloading complete sanning file if mirror does not exist. Seal of mirror is verified.
+     */
+    Sanning open() throws IOException, InterruptedException {
+        if (!file.exists()) {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            HttpResponse<?> response = httpClient.send(request("/result"), HttpResponse.BodyHandlers.ofFile(tmpFile.toPath()));
+            if (response.statusCode() != 200) {
+                throw new IOException("download failed: " + response.statusCode());
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return new Sanning(file.getName(), file.getParent());
+    }
+
+    /**
+     * Sync mirror with answers since last sync.
+     * @return number of synced answers
+     */
+    int sync(Sanning sanning) throws IOException, InterruptedException {
+        int version = sanning.answers.size();
+        HttpResponse<String> response = httpClient.send(request("/since?version=" + version), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("sync failed: " + response.statusCode());
+        }
+
+        // Parse: <version>:<new version>, summary, hash chain link, Merkle root, blank line and answer lines.
+        String[] lines = response.body().split("\n");
+        String[] versions = lines[0].split(":");
+        if (Integer.parseInt(versions[0]) != version) {
+            throw new IllegalStateException("version mismatch: " + lines[0]);
+        }
+        String[] summaryStr = lines[1].split(":");
+        long[] counts = new long[summaryStr.length];
+        for (int ix = 0; ix < counts.length; ix++) {
+            counts[ix] = Long.parseLong(summaryStr[ix]);
+        }
+        List<String> answerLines = new ArrayList<>(Arrays.asList(lines).subList(Math.min(5, lines.length), lines.length));
+        if (version + answerLines.size() != Integer.parseInt(versions[1])) {
+            throw new IllegalStateException("answers missing: " + lines[0]);
+        }
+
+        // Verify and append.
+        sanning.sync(answerLines, counts, Util.fromHex(lines[2]), Util.fromHex(lines[3]));
+        return answerLines.size();
+    }
+
+    //
+    // Helper methods:
+    //
+
+    private HttpRequest request(String op) {
+        return HttpRequest.newBuilder()
+                          .GET()
+                          .uri(URI.create(url + op))
+                          .timeout(Duration.ofMillis(TIMEOUT))
+                          .setHeader("User-Agent", "Sanning")
+                          .build();
+    }
+
+    /**
+     * Mirror sanning, once or periodically.
+     * @param args <sanning url> <mirror path> [<interval seconds>]
+     */
+    public static void main(String[] args) throws Throwable {
+        // Usage.
+        if ((args.length < 2) || (args.length > 3)) {
+            System.out.println("sanning-mirror.sh <sanning url> <mirror path> [<interval seconds>]");
+            System.exit(2);
+        }
+        SanningMirror mirror = new SanningMirror(args[0], new File(args[1]));
+        long interval = (args.length == 3) ? Long.parseLong(args[2]) * 1000 : 0;
+
+        Sanning sanning = mirror.open();
+        do {
+            int synced = mirror.sync(sanning);
+            Result result = sanning.result();
+            System.out.println(Util.toISO8601(Util.timestamp(System.currentTimeMillis())) + " synced " + synced +
+                               " answers, total " + result.total + ", chain " + toHex(sanning.chain));
+            Thread.sleep(interval);
+        } while (interval > 0);
+    }
+
+}
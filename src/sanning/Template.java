@@ -0,0 +1,71 @@
+package sanning;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Template compiled to static segments of UTF-8 bytes between ${NAME} slots. Rendering sizes the output from
+ * segments and slot values and encodes them directly into it, without replacing or formatting, so render cost is
+ * proportional to output size. Slots without value are rendered as written in template.
+ */
+final class Template {
+
+    private final byte[][] segments;  // Static text before each slot, followed by text after last slot.
+    private final String[] slots;     // Slot names, in template order.
+
+    Template(String text) {
+        List<byte[]> segmentList = new ArrayList<>();
+        List<String> slotList = new ArrayList<>();
+        int ix = 0;
+        int slotStart;
+        int slotEnd;
+        while (((slotStart = text.indexOf("${", ix)) != -1) && ((slotEnd = text.indexOf('}', slotStart)) != -1)) {
+            segmentList.add(text.substring(ix, slotStart).getBytes(StandardCharsets.UTF_8));
+            slotList.add(text.substring(slotStart + 2, slotEnd));
+            ix = slotEnd + 1;
+        }
+        segmentList.add(text.substring(ix).getBytes(StandardCharsets.UTF_8));
+        segments = segmentList.toArray(new byte[0][]);
+        slots = slotList.toArray(new String[0]);
+    }
+
+    /**
+     * Render template.
+     * @param namesAndValues slot names and values: name1, value1, name2, value2...
+     * @return rendered template, UTF-8 encoded
+     */
+    byte[] render(CharSequence... namesAndValues) {
+        // Size.
+        CharSequence[] values = new CharSequence[slots.length];
+        int len = segments[slots.length].length;
+        for (int ix = 0; ix < slots.length; ix++) {
+            values[ix] = value(slots[ix], namesAndValues);
+            len += segments[ix].length + Util.lengthUTF8(values[ix]);
+        }
+
+        // Encode.
+        byte[] out = new byte[len];
+        int offset = 0;
+        for (int ix = 0; ix < slots.length; ix++) {
+            System.arraycopy(segments[ix], 0, out, offset, segments[ix].length);
+            offset = Util.encodeUTF8(values[ix], out, offset + segments[ix].length);
+        }
+        System.arraycopy(segments[slots.length], 0, out, offset, segments[slots.length].length);
+        return out;
+    }
+
+    //
+    // Helper methods:
+    //
+
+    private static CharSequence value(String slot, CharSequence[] namesAndValues) {
+        for (int ix = 0; ix + 1 < namesAndValues.length; ix += 2) {
+            if (slot.contentEquals(namesAndValues[ix])) {
+                return namesAndValues[ix + 1];
+            }
+        }
+        return "${" + slot + "}";
+    }
+
+}
@@ -3,12 +3,19 @@ package sanning;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
 import java.util.Base64;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -19,9 +26,27 @@ import javax.net.ssl.X509TrustManager;
 
 public final class Util {
 
+    static final int HASH_LEN = 32;
     static final char[] HEX_CHAR = "0123456789abcdef".toCharArray();
-    static final SimpleDateFormat ISO_8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
-    static final int ISO_8601_LEN = ISO_8601.format(0).length();
+    static final byte[] BASE64_CHAR = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] BASE64_VALUE = new byte[128];
+    static final DateTimeFormatter ISO_8601 = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSSXXX");
+    static final int TIMESTAMP_MAX_LEN = 36;
+
+    /** Formatted current second of new timestamps, shared by all threads. */
+    private static volatile TimestampPrefix timestampPrefix = new TimestampPrefix(0, 0);
+
+    static {
+        Arrays.fill(BASE64_VALUE, (byte) -1);
+        for (int ix = 0; ix < BASE64_CHAR.length; ix++) {
+            BASE64_VALUE[BASE64_CHAR[ix]] = (byte) ix;
+        }
+    }
+
+    /** SHA-256 digest per thread. */
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Util::newDigest);
+    /** Encode buffer per thread. */
+    private static final ThreadLocal<byte[]> ENCODE_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
 
     static String toHex(byte... bytes) { return toHex(bytes, 0, bytes.length); }
     static String toHex(byte[] bytes, int offset, int len) {
@@ -33,8 +58,75 @@ public final class Util {
         }
         return new String(hexChars);
     }
+    static byte[] fromHex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = (byte) Integer.parseInt(s.substring(j * 2, j * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    static String toBase64(byte[] bytes) { return toBase64(bytes, 0, bytes.length); }
+    static String toBase64(byte[] bytes, int offset, int len) {
+        byte[] dst = new byte[(len + 2) / 3 * 4];
+        toBase64(bytes, offset, len, dst, 0);
+        return new String(dst, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Encode base 64 into buffer, with padding.
+     * @return offset after encoded bytes
+     */
+    static int toBase64(byte[] src, int offset, int len, byte[] dst, int dstOffset) {
+        int end = offset + len;
+        int ix = offset;
+        for (; ix + 3 <= end; ix += 3) {
+            int bits = (src[ix] & 0xff) << 16 | (src[ix + 1] & 0xff) << 8 | (src[ix + 2] & 0xff);
+            dst[dstOffset++] = BASE64_CHAR[bits >>> 18];
+            dst[dstOffset++] = BASE64_CHAR[(bits >>> 12) & 0x3f];
+            dst[dstOffset++] = BASE64_CHAR[(bits >>> 6) & 0x3f];
+            dst[dstOffset++] = BASE64_CHAR[bits & 0x3f];
+        }
+        if (ix < end) {
+            int bits = (src[ix] & 0xff) << 16 | ((ix + 1 < end) ? (src[ix + 1] & 0xff) << 8 : 0);
+            dst[dstOffset++] = BASE64_CHAR[bits >>> 18];
+            dst[dstOffset++] = BASE64_CHAR[(bits >>> 12) & 0x3f];
+            dst[dstOffset++] = (ix + 1 < end) ? BASE64_CHAR[(bits >>> 6) & 0x3f] : (byte) '=';
+            dst[dstOffset++] = '=';
+        }
+        return dstOffset;
+    }
+    static byte[] fromBase64(String s) { return Base64.getDecoder().decode(s); }
+
+    /**
+     * Decode base 64 into buffer.
+     * @return decoded length or -1 if invalid or too long for buffer
+     */
+    static int fromBase64(byte[] src, int offset, int len, byte[] dst) {
+        while ((len > 0) && (src[offset + len - 1] == '=')) {
+            len--;
+        }
+        if ((len % 4 == 1) || (len * 3 / 4 > dst.length)) {
+            return -1;
+        }
+        int bits = 0;
+        int numBits = 0;
+        int dstLen = 0;
+        for (int ix = offset; ix < offset + len; ix++) {
+            int val = (src[ix] >= 0) ? BASE64_VALUE[src[ix]] : -1;
+            if (val == -1) {
+                return -1;
+            }
+            bits = (bits << 6) | val;
+            numBits += 6;
+            if (numBits >= 8) {
+                numBits -= 8;
+                dst[dstLen++] = (byte) (bits >> numBits);
+            }
+        }
+        return dstLen;
+    }
 
-    static String toBase64(byte[] bytes) { return Base64.getEncoder().encodeToString(bytes); }
     static byte[] toBytes(CharSequence... s) {
         return String.join("", s).getBytes(StandardCharsets.UTF_8);
     }
@@ -49,15 +141,252 @@ public final class Util {
        return buf;
     }
 
-    static String toISO8601(long ts) { return ISO_8601.format(ts); }
+    /**
+     * Packed timestamp: epoch milliseconds and zone offset in minutes (lowest 12 bits), so that a timestamp is
+     * rendered exactly as it was recorded.
+     * @param millis epoch milliseconds, timestamped in system default zone
+     */
+    static long timestamp(long millis) {
+        int offsetSecs = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+        return (millis << 12) | ((offsetSecs / 60) & 0xfff);
+    }
+
+    /**
+     * Parse ISO 8601 timestamp: yyyy-MM-ddTHH:mm:ss.SSS followed by Z or zone offset +HH:MM.
+     * @return packed timestamp
+     */
+    static long parseISO8601(byte[] b, int offset, int len) {
+        int offsetMinutes = 0;
+        boolean validOffset = true;
+        if ((len == 29) && ((b[offset + 23] == '+') || (b[offset + 23] == '-')) && (b[offset + 26] == ':')) {
+            int offsetHours = digits(b, offset + 24, 2);
+            offsetMinutes = digits(b, offset + 27, 2);
+            validOffset = (offsetHours >= 0) && (offsetHours <= 18) && (offsetMinutes >= 0) && (offsetMinutes <= 59);
+            offsetMinutes = offsetHours * 60 + offsetMinutes;
+            offsetMinutes = (b[offset + 23] == '-') ? -offsetMinutes : offsetMinutes;
+        } else if ((len != 24) || (b[offset + 23] != 'Z')) {
+            validOffset = false;
+        }
+        int hour = digits(b, offset + 11, 2);
+        int minute = digits(b, offset + 14, 2);
+        int second = digits(b, offset + 17, 2);
+        int milli = digits(b, offset + 20, 3);
+        if ((len < 24) || !validOffset ||
+            (b[offset + 4] != '-') || (b[offset + 7] != '-') || (b[offset + 10] != 'T') ||
+            (b[offset + 13] != ':') || (b[offset + 16] != ':') || (b[offset + 19] != '.') ||
+            (hour < 0) || (hour > 23) || (minute < 0) || (minute > 59) || (second < 0) || (second > 59) || (milli < 0)) {
+            throw new IllegalStateException("invalid timestamp: " + new String(b, offset, len, StandardCharsets.UTF_8));
+        }
+        long epochDay = LocalDate.of(digits(b, offset, 4), digits(b, offset + 5, 2), digits(b, offset + 8, 2)).toEpochDay();
+        long millis = ((epochDay * 86400 + hour * 3600 + minute * 60 + second) * 1000 + milli) - offsetMinutes * 60000L;
+        return (millis << 12) | (offsetMinutes & 0xfff);
+    }
+
+    /** Parse decimal digits, -1 if not digits. */
+    private static int digits(byte[] b, int offset, int len) {
+        int val = 0;
+        for (int ix = offset; ix < offset + len; ix++) {
+            if ((b[ix] < '0') || (b[ix] > '9')) {
+                return -1;
+            }
+            val = val * 10 + (b[ix] - '0');
+        }
+        return val;
+    }
+
+    static String toISO8601(long ts) {
+        byte[] dst = new byte[TIMESTAMP_MAX_LEN];
+        return new String(dst, 0, toISO8601(ts, dst, 0), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Format packed timestamp into buffer. Formatted second and zone offset of the current second are cached, so only
+     * milliseconds are formatted for new timestamps. Earlier timestamps are formatted directly, not to evict the cache.
+     * @return offset after formatted timestamp
+     */
+    static int toISO8601(long ts, byte[] dst, int offset) {
+        int offsetMinutes = ((int) ts << 20) >> 20; // sign extend lowest 12 bits
+        long millis = ts >> 12;
+        long second = Math.floorDiv(millis, 1000);
+        int milli = Math.floorMod(millis, 1000);
+        TimestampPrefix prefix = timestampPrefix;
+        if ((prefix.second != second) || (prefix.offsetMinutes != offsetMinutes)) {
+            if (second != System.currentTimeMillis() / 1000) {
+                return toISO8601(second, milli, offsetMinutes, dst, offset);
+            }
+            timestampPrefix = prefix = new TimestampPrefix(second, offsetMinutes);
+        }
+        System.arraycopy(prefix.prefix, 0, dst, offset, prefix.prefix.length);
+        offset = putDigits(milli, 3, dst, offset + prefix.prefix.length);
+        System.arraycopy(prefix.zoneOffset, 0, dst, offset, prefix.zoneOffset.length);
+        return offset + prefix.zoneOffset.length;
+    }
+
+    /** Format timestamp fields into buffer: uuuu-MM-dd'T'HH:mm:ss.SSSXXX */
+    private static int toISO8601(long second, int milli, int offsetMinutes, byte[] dst, int offset) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(second + offsetMinutes * 60L, 0, ZoneOffset.UTC);
+        offset = putDigits(time.getYear(), 4, dst, offset);
+        dst[offset++] = '-';
+        offset = putDigits(time.getMonthValue(), 2, dst, offset);
+        dst[offset++] = '-';
+        offset = putDigits(time.getDayOfMonth(), 2, dst, offset);
+        dst[offset++] = 'T';
+        offset = putDigits(time.getHour(), 2, dst, offset);
+        dst[offset++] = ':';
+        offset = putDigits(time.getMinute(), 2, dst, offset);
+        dst[offset++] = ':';
+        offset = putDigits(time.getSecond(), 2, dst, offset);
+        dst[offset++] = '.';
+        offset = putDigits(milli, 3, dst, offset);
+        if (offsetMinutes == 0) {
+            dst[offset++] = 'Z';
+            return offset;
+        }
+        dst[offset++] = (byte) ((offsetMinutes < 0) ? '-' : '+');
+        offset = putDigits(Math.abs(offsetMinutes) / 60, 2, dst, offset);
+        dst[offset++] = ':';
+        return putDigits(Math.abs(offsetMinutes) % 60, 2, dst, offset);
+    }
+
+    /** Put decimal digits of non-negative value, zero padded to len. */
+    private static int putDigits(int val, int len, byte[] dst, int offset) {
+        for (int ix = offset + len - 1; ix >= offset; ix--) {
+            dst[ix] = (byte) ('0' + val % 10);
+            val /= 10;
+        }
+        return offset + len;
+    }
+
+    /** Formatted second of timestamps: date and time up to milliseconds, and zone offset. Immutable. */
+    private static final class TimestampPrefix {
+
+        final long second;
+        final int offsetMinutes;
+        final byte[] prefix;      // uuuu-MM-dd'T'HH:mm:ss.
+        final byte[] zoneOffset;  // XXX
+
+        TimestampPrefix(long second, int offsetMinutes) {
+            this.second = second;
+            this.offsetMinutes = offsetMinutes;
+            byte[] formatted = Instant.ofEpochSecond(second).atOffset(ZoneOffset.ofTotalSeconds(offsetMinutes * 60)).format(ISO_8601).
+                                      getBytes(StandardCharsets.US_ASCII);
+            int ix = indexOf(formatted, (byte) '.') + 1;
+            prefix = Arrays.copyOf(formatted, ix);
+            zoneOffset = Arrays.copyOfRange(formatted, ix + 3, formatted.length);
+        }
+
+        private static int indexOf(byte[] bytes, byte b) {
+            int ix = 0;
+            while (bytes[ix] != b) {
+                ix++;
+            }
+            return ix;
+        }
+    }
+
+    static byte[] hash(CharSequence... vals) {
+        byte[] hash = new byte[HASH_LEN];
+        hash(hash, 0, vals);
+        return hash;
+    }
 
-    static byte[] hash(String... vals) {
+    /** Hash UTF-8 encoded vals into buffer, without allocating. */
+    static void hash(byte[] dst, int offset, CharSequence... vals) {
+        MessageDigest digest = digest();
+        for (CharSequence val : vals) {
+            update(digest, val);
+        }
+        digestInto(digest, dst, offset);
+    }
+
+    /**
+     * Reset SHA-256 digest of current thread. Digest must be completed before next call on same thread, use
+     * {@link #newDigest} for a digest updated across other digests.
+     */
+    static MessageDigest digest() {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
+    /** Create SHA-256 digest updated with vals. */
+    static MessageDigest newDigest(CharSequence... vals) {
         MessageDigest digest;
         try { digest = MessageDigest.getInstance("SHA-256"); } catch (NoSuchAlgorithmException e) { throw new IllegalStateException("SHA-256 not available"); }
-        for (String val : vals) {
-            digest.update(toBytes(val));
+        for (CharSequence val : vals) {
+            update(digest, val);
+        }
+        return digest;
+    }
+
+    /** Update digest with UTF-8 encoded val, encoded into buffer of current thread. Null is encoded as "null". */
+    static void update(MessageDigest digest, CharSequence val) {
+        val = (val != null) ? val : "null";
+        byte[] buffer = ENCODE_BUFFER.get();
+        if (val.length() * 3 > buffer.length) {
+            buffer = new byte[val.length() * 3];
+            ENCODE_BUFFER.set(buffer);
+        }
+        digest.update(buffer, 0, encodeUTF8(val, buffer, 0));
+    }
+
+    /** Complete digest into buffer. */
+    static void digestInto(MessageDigest digest, byte[] dst, int offset) {
+        try { digest.digest(dst, offset, HASH_LEN); } catch (DigestException e) { throw new IllegalStateException(e); }
+    }
+
+    /**
+     * Encode UTF-8 into buffer, unpaired surrogates encoded as '?' like String.getBytes.
+     * @return offset after encoded bytes
+     */
+    static int encodeUTF8(CharSequence s, byte[] dst, int offset) {
+        int len = s.length();
+        for (int ix = 0; ix < len; ix++) {
+            char c = s.charAt(ix);
+            if (c < 0x80) {
+                dst[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[offset++] = (byte) (0xc0 | (c >> 6));
+                dst[offset++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && (ix + 1 < len) && Character.isLowSurrogate(s.charAt(ix + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++ix));
+                    dst[offset++] = (byte) (0xf0 | (cp >> 18));
+                    dst[offset++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    dst[offset++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    dst[offset++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    dst[offset++] = '?';
+                }
+            } else {
+                dst[offset++] = (byte) (0xe0 | (c >> 12));
+                dst[offset++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                dst[offset++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return offset;
+    }
+
+    /** Length of UTF-8 encoding, as by {@link #encodeUTF8}. */
+    static int lengthUTF8(CharSequence s) {
+        int len = s.length();
+        int utf8Len = len;
+        for (int ix = 0; ix < len; ix++) {
+            char c = s.charAt(ix);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    utf8Len += 1;
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && (ix + 1 < len) && Character.isLowSurrogate(s.charAt(ix + 1))) {
+                        utf8Len += 2;
+                        ix++;
+                    }
+                } else {
+                    utf8Len += 2;
+                }
+            }
         }
-        return digest.digest();
+        return utf8Len;
     }
 
     public static SSLContext createSSLContext(String keyStorePath, String keyStorePass, boolean validateServer) throws GeneralSecurityException, IOException {
@@ -0,0 +1,55 @@
+package sanning.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip content coding of response bodies. Cacheable bodies are compressed once and sent as is, other bodies are
+ * compressed while written.
+ */
+public final class Gzip {
+
+   public static final HeaderBlock CONTENT_ENCODING = new HeaderBlock("Content-Encoding", "gzip");
+   public static final HeaderBlock VARY = new HeaderBlock("Vary", "Accept-Encoding");
+
+   private static final int BUFFER_SIZE = 32 * 1024;
+
+   private Gzip() { }
+
+   /**
+    * Client accepts gzip compressed body. Vary header is added to response, since body depends on Accept-Encoding.
+    */
+   public static boolean accepted(HTTPRequest request, HTTPResponse response) {
+      response.headerBlocks.add(VARY);
+      return request.acceptsEncoding("gzip");
+   }
+
+   /** Entity tag of compressed variant of entity with specified tag. */
+   public static String etag(String etag) {
+      return etag.endsWith("\"") ? etag.substring(0, etag.length() - 1) + "-gzip\"" : etag + "-gzip";
+   }
+
+   /** Compress bytes. */
+   public static byte[] compress(byte[] bytes) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+      try (GZIPOutputStream gzipOut = new GZIPOutputStream(out, BUFFER_SIZE)) {
+         gzipOut.write(bytes);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return out.toByteArray();
+   }
+
+   /** Writer of body compressed while written, of length not known before. */
+   public static HTTPResponse.BodyWriter compress(HTTPResponse.BodyWriter bodyWriter) {
+      return out -> {
+         GZIPOutputStream gzipOut = new GZIPOutputStream(Channels.newOutputStream(out), BUFFER_SIZE);
+         bodyWriter.write(Channels.newChannel(gzipOut));
+         gzipOut.finish();
+      };
+   }
+
+}
@@ -17,10 +17,31 @@ public final class HTTPRequest {
    }
 
    /** Extract parameter value from request body. */
-   public String extractBodyParameter(String name) {
-       int ix1 = body.indexOf(name + "=");
-       int ix2 = body.indexOf('&', ix1);
-       return (ix1 != -1) ? body.substring(ix1 + 1 + name.length(), (ix2 > ix1) ? ix2 : body.length()) : null;
+   public String extractBodyParameter(String name) { return extractParameter(body, name); }
+
+   /** Client accepts content coding, by Accept-Encoding header, unless with quality 0. */
+   public boolean acceptsEncoding(String coding) {
+      boolean accepts = false;
+      for (String value : headers.multiValue("Accept-Encoding")) {
+         for (String element : value.split(",")) {
+            int semicolon = element.indexOf(';');
+            String name = ((semicolon != -1) ? element.substring(0, semicolon) : element).trim();
+            boolean accepted = (semicolon == -1) || !element.substring(semicolon + 1).trim().matches("q=0(\\.0{0,3})?");
+            if (name.equalsIgnoreCase(coding)) {
+               return accepted;
+            } else if (name.equals("*")) {
+               accepts = accepted;
+            }
+         }
+      }
+      return accepts;
+   }
+
+   /** Extract parameter value from parameter string: name1=value1&amp;name2=value2... */
+   public static String extractParameter(String params, String name) {
+       int ix1 = params.indexOf(name + "=");
+       int ix2 = params.indexOf('&', ix1);
+       return (ix1 != -1) ? params.substring(ix1 + 1 + name.length(), (ix2 > ix1) ? ix2 : params.length()) : null;
    }
 
 }
@@ -1,16 +1,32 @@
 package sanning.http;
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
 public final class HTTPResponse {
 
    public int statusCode;
    public String reasonPhrase;
    public final Headers headers;
+   public HeaderBlock contentType;               // Pre-encoded Content-Type header, instead of in headers.
+   public final List<HeaderBlock> headerBlocks;  // Pre-encoded constant headers, written after headers.
    public byte[] body;
+   public BodyWriter bodyWriter;                 // Streamed body, written instead of body when set.
+   public long bodyLength;                       // Length of streamed body, -1 if not known (sent chunked).
 
    public HTTPResponse() {
       headers = new Headers();
+      headerBlocks = new ArrayList<>(2);
       statusCode = 200;
       reasonPhrase = "OK";
+      bodyLength = -1;
+   }
+
+   /** Writer of streamed body, called after headers are sent. */
+   public interface BodyWriter {
+      void write(WritableByteChannel out) throws IOException;
    }
 
 }
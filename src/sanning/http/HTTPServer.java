@@ -2,7 +2,6 @@ package sanning.http;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetSocketAddress;
@@ -10,6 +9,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.Executor;
@@ -20,8 +24,10 @@ import javax.net.ssl.SSLContext;
 
 public final class HTTPServer implements Runnable {
 
-    private static final Pattern HEADER_PATTERN = Pattern.compile("(?i)([^:]*):\\s(.*?)\\s*");
-    private static final Pattern CHARSET_PATTERN = Pattern.compile("[^;]*;\\scharset=(\\S*)\\s*$");
+    static final Pattern CHARSET_PATTERN = Pattern.compile("[^;]*;\\scharset=(\\S*)\\s*$");
+    static final HeaderBlock SERVER = new HeaderBlock("Server", "HTTPServer");
+    static final HeaderBlock TEXT_PLAIN = new HeaderBlock("Content-Type", "text/plain");
+    private static final byte[] STATUS_OK = "HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.US_ASCII);
 
     private final int port;
     private final HTTPProcessor httpProcessor;
@@ -42,10 +48,13 @@ public final class HTTPServer implements Runnable {
 
     public void run() {
         try {
-            ServerSocket ss = (sslSocketFactory != null) ? sslSocketFactory.createServerSocket(port, 50) : new ServerSocket(port);
+            // Plain sockets are accepted from a channel, so responses are written by gathering channel writes.
+            ServerSocket ss = (sslSocketFactory != null) ? sslSocketFactory.createServerSocket(port, 50) :
+                              ServerSocketChannel.open().bind(new InetSocketAddress(port), 50).socket();
             //noinspection InfiniteLoopStatement
             for (; ; ) {
-                executor.execute(new RequestHandler(httpProcessor, ss.accept(), readTimeout, idleTimeout, null));
+                Socket socket = (ss.getChannel() != null) ? ss.getChannel().accept().socket() : ss.accept();
+                executor.execute(new RequestHandler(httpProcessor, socket, readTimeout, idleTimeout, null));
             }
         } catch (IOException e) {
             System.out.println("ERROR: listener I/O error: " + e.getMessage());
@@ -53,6 +62,178 @@ public final class HTTPServer implements Runnable {
         }
     }
 
+    /** Decode request body, with charset of content type or ISO-8859-1. */
+    static String decodeBody(Headers requestHeaders, ByteBuffer bodyBuffer) {
+        Charset bodyCharset = StandardCharsets.ISO_8859_1;
+        String contentType = requestHeaders.singleValue("Content-Type");
+        if (contentType != null) {
+            Matcher m = CHARSET_PATTERN.matcher(contentType);
+            if (m.matches()) {
+                try { bodyCharset = Charset.forName(m.group(1)); } catch (IllegalArgumentException ignored) { }
+            }
+        }
+        return bodyCharset.decode(bodyBuffer).toString();
+    }
+
+    /** Process request, internal server error response if processor fails. */
+    static HTTPResponse process(HTTPProcessor httpProcessor, HTTPRequest request) {
+        HTTPResponse response = new HTTPResponse();
+        try {
+            httpProcessor.process(request, response);
+        } catch (RuntimeException e) {
+            sendInternalServerError(response, e);
+        }
+        return response;
+    }
+
+    /**
+     * Encode response for a gathering write: status line, constant header blocks, headers with content length or
+     * chunked transfer coding of body, and body. Common status line and header blocks are not encoded again.
+     * @param body body or null if body is streamed or empty
+     */
+    static ByteBuffer[] encodeResponse(HTTPResponse response, ByteBuffer body) {
+        Headers responseHeaders = response.headers;
+        if (response.bodyWriter != null) {
+            if (response.bodyLength >= 0) {
+                responseHeaders.setValue("Content-Length", String.valueOf(response.bodyLength));
+            } else {
+                responseHeaders.setValue("Transfer-Encoding", "chunked");
+            }
+        } else if (response.body != null) {
+            responseHeaders.setValue("Content-Length", String.valueOf(response.body.length));
+        } else if (response.statusCode != 304) {
+            responseHeaders.setValue("Content-Length", "0");
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[3 + ((response.contentType != null) ? 1 : 0) + response.headerBlocks.size() +
+                                              ((body != null) ? 1 : 0)];
+        int n = 0;
+        if ((response.statusCode == 200) && "OK".equals(response.reasonPhrase)) {
+            buffers[n++] = ByteBuffer.wrap(STATUS_OK);
+        } else {
+            String statusLine = "HTTP/1.1 " + response.statusCode + ((response.reasonPhrase != null) ? " " + response.reasonPhrase : "") + "\r\n";
+            buffers[n++] = ByteBuffer.wrap(statusLine.getBytes(StandardCharsets.US_ASCII));
+        }
+        buffers[n++] = SERVER.buffer();
+        if (response.contentType != null) {
+            buffers[n++] = response.contentType.buffer();
+        }
+        for (HeaderBlock block : response.headerBlocks) {
+            buffers[n++] = block.buffer();
+        }
+        buffers[n++] = ByteBuffer.wrap(encodeHeaders(responseHeaders));
+        if (body != null) {
+            buffers[n] = body;
+        }
+        return buffers;
+    }
+
+    /** Write buffers fully, by gathering writes. */
+    static void write(GatheringByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /** Encode header lines followed by empty line, in US-ASCII. */
+    private static byte[] encodeHeaders(Headers headers) {
+        int len = 2;
+        for (String headerName : headers.names()) {
+            for (String headerValue : headers.multiValue(headerName)) {
+                len += headerName.length() + headerValue.length() + 4;
+            }
+        }
+        byte[] bytes = new byte[len];
+        int ix = 0;
+        for (String headerName : headers.names()) {
+            for (String headerValue : headers.multiValue(headerName)) {
+                ix = encodeASCII(headerName, bytes, ix);
+                bytes[ix++] = ':';
+                bytes[ix++] = ' ';
+                ix = encodeASCII(headerValue, bytes, ix);
+                bytes[ix++] = '\r';
+                bytes[ix++] = '\n';
+            }
+        }
+        bytes[ix++] = '\r';
+        bytes[ix] = '\n';
+        return bytes;
+    }
+
+    private static int encodeASCII(String s, byte[] dst, int ix) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            dst[ix++] = (byte) ((c < 0x80) ? c : '?');
+        }
+        return ix;
+    }
+
+    private static void sendInternalServerError(HTTPResponse response, Exception e) {
+        // Discard headers and body of failed response, such as content coding and validators.
+        response.headers.clear();
+        response.headerBlocks.clear();
+        response.bodyWriter = null;
+        response.bodyLength = -1;
+        response.statusCode = 500;
+        response.reasonPhrase = "Internal Server Error";
+        response.headers.setValue("Connection", "close");
+        response.contentType = TEXT_PLAIN;
+        StringBuilder errorMsg = new StringBuilder();
+        errorMsg.append("500 INTERNAL SERVER ERROR").append("\n\n");
+        StringWriter sw = new StringWriter();
+        e.printStackTrace(new PrintWriter(sw));
+        errorMsg.append(sw);
+        response.body = StandardCharsets.US_ASCII.encode(errorMsg.toString()).array();
+    }
+
+    /** Channel writing each write as a chunk, in chunked transfer coding. Close writes last chunk. */
+    static final class ChunkedChannel implements WritableByteChannel {
+
+        private static final byte[] CRLF = {'\r', '\n'};
+
+        private final WritableByteChannel channel;
+        private boolean open;
+
+        ChunkedChannel(WritableByteChannel channel) {
+            this.channel = channel;
+            this.open = true;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int len = src.remaining();
+            if (len > 0) {
+                ByteBuffer[] chunk = {StandardCharsets.US_ASCII.encode(Integer.toHexString(len) + "\r\n"), src, ByteBuffer.wrap(CRLF)};
+                if (channel instanceof GatheringByteChannel) {
+                    HTTPServer.write((GatheringByteChannel) channel, chunk);
+                } else {
+                    for (ByteBuffer buffer : chunk) {
+                        writeFully(buffer);
+                    }
+                }
+            }
+            return len;
+        }
+
+        public boolean isOpen() { return open; }
+
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                writeFully(StandardCharsets.US_ASCII.encode("0\r\n\r\n"));
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
     public static class RequestHandler implements Runnable {
 
         private final HTTPProcessor httpProcessor;
@@ -75,14 +256,12 @@ public final class HTTPServer implements Runnable {
                 boolean shouldClose = false;
                 socket.setSoTimeout(readTimeout); // use readTimeout for first request
 
-                InputStream istream = socket.getInputStream();
+                RequestParser parser = new RequestParser(socket.getInputStream());
                 BufferedOutputStream ostream = new BufferedOutputStream(socket.getOutputStream());
                 while (!shouldClose) {
-                    if (requestLine == null) {
-                        int firstChar;
+                    if ((requestLine == null) && !parser.hasBuffered()) {
                         try {
-                            firstChar = istream.read();
-                            if (firstChar == -1) {
+                            if (!parser.fill()) {
                                 shouldClose = true;
                                 continue;
                             }
@@ -90,84 +269,50 @@ public final class HTTPServer implements Runnable {
                             shouldClose = true; // idle timeout - close down
                             continue;
                         }
-
-                        socket.setSoTimeout(readTimeout);
-                        requestLine = (char) firstChar + readLine(istream);
                     }
+                    socket.setSoTimeout(readTimeout);
                     Headers requestHeaders = new Headers();
-                    String headerLine = readLine(istream);
-                    while (headerLine.length() > 0) {
-                        Matcher m = HEADER_PATTERN.matcher(headerLine);
-                        if (m.matches()) {
-                            requestHeaders.addValue(m.group(1), m.group(2));
-                        }
-                        headerLine = readLine(istream);
+                    if (requestLine == null) {
+                        requestLine = parser.readHead(requestHeaders, true);
+                    } else {
+                        parser.readHead(requestHeaders, false);
                     }
                     shouldClose = "close".equals(requestHeaders.singleValue("Connection"));
 
-                    ByteBuffer bodyBuffer = null;
+                    String body = null;
                     String contentLengthStr = requestHeaders.singleValue("Content-Length");
                     if (contentLengthStr != null) {
-                        int contentLength = Integer.parseInt(contentLengthStr);
-                        byte[] bodyBytes = new byte[contentLength];
-                        int offset = 0;
-                        int numRead;
-                        while (offset < contentLength && (numRead = istream.read(bodyBytes, offset, contentLength - offset)) >= 0) {
-                            offset += numRead;
-                        }
-                        if (offset >= contentLength) {
-                            bodyBuffer = ByteBuffer.wrap(bodyBytes);
-                        }
-                    }
-                    String body = null;
-                    if (bodyBuffer != null) {
-                        Charset bodyCharset = StandardCharsets.ISO_8859_1;
-                        String contentType = requestHeaders.singleValue("Content-Type");
-                        if (contentType != null) {
-                            Matcher m = CHARSET_PATTERN.matcher(contentType);
-                            if (m.matches()) {
-                                try { bodyCharset = Charset.forName(m.group(1)); } catch (IllegalArgumentException ignored) { }
-                            }
-                        }
-                        body = bodyCharset.decode(bodyBuffer).toString();
+                        ByteBuffer bodyBuffer = parser.readBody(Integer.parseInt(contentLengthStr));
+                        body = (bodyBuffer != null) ? decodeBody(requestHeaders, bodyBuffer) : null;
                     }
 
                     HTTPRequest request = new HTTPRequest(requestLine, requestHeaders, body, (InetSocketAddress) socket.getRemoteSocketAddress());
                     requestLine = null;
-                    HTTPResponse response = new HTTPResponse();
-                    Headers responseHeaders = response.headers;
-                    responseHeaders.setValue("Server", "HTTPServer");
-                    try {
-                        httpProcessor.process(request, response);
-                    } catch (RuntimeException e) {
-                        sendInternalServerError(response, e);
-                    }
+                    HTTPResponse response = process(httpProcessor, request);
 
-                    shouldClose = shouldClose || "close".equals(responseHeaders.singleValue("Connection"));
-
-                    if (response.body != null) {
-                        responseHeaders.setValue("Content-Length", String.valueOf(response.body.length));
+                    shouldClose = shouldClose || "close".equals(response.headers.singleValue("Connection"));
+                    ByteBuffer bodyBuffer = ((response.bodyWriter == null) && (response.body != null)) ? ByteBuffer.wrap(response.body) : null;
+                    ByteBuffer[] buffers = encodeResponse(response, bodyBuffer);
+                    SocketChannel socketChannel = socket.getChannel();
+                    if (socketChannel != null) {
+                        write(socketChannel, buffers);
                     } else {
-                        responseHeaders.setValue("Content-Length", "0");
-                    }
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("HTTP/1.1 ").append(response.statusCode);
-                    if (response.reasonPhrase != null) {
-                        sb.append(' ').append(response.reasonPhrase);
-                    }
-                    sb.append("\r\n");
-                    for (String headerName : responseHeaders.names()) {
-                        for (String headerValue : responseHeaders.multiValue(headerName)) {
-                            sb.append(headerName).append(": ");
-                            sb.append(headerValue);
-                            sb.append("\r\n");
+                        for (ByteBuffer buffer : buffers) {
+                            ostream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
                         }
                     }
-                    sb.append("\r\n");
-                    ostream.write(StandardCharsets.US_ASCII.encode(sb.toString()).array());
 
-                    if (response.body != null) {
-                        ostream.write(response.body);
+                    if (response.bodyWriter != null) {
+                        // Stream body, directly to socket channel if available.
+                        ostream.flush();
+                        WritableByteChannel channel = (socketChannel != null) ? socketChannel : Channels.newChannel(ostream);
+                        if (response.bodyLength >= 0) {
+                            response.bodyWriter.write(channel);
+                        } else {
+                            ChunkedChannel chunkedChannel = new ChunkedChannel(channel);
+                            response.bodyWriter.write(chunkedChannel);
+                            chunkedChannel.close();
+                        }
                     }
                     ostream.flush();
 
@@ -181,33 +326,6 @@ public final class HTTPServer implements Runnable {
                 }
             }
         }
-
-        public static String readLine(InputStream istream) throws IOException {
-            StringBuilder sb = new StringBuilder();
-            int c;
-            while ((c = istream.read()) != '\r') {
-                if (c == -1) {
-                    throw new IllegalStateException("unexpected EOF");
-                }
-                sb.append((char) c);
-            }
-            //noinspection ResultOfMethodCallIgnored
-            istream.read(); // skip '\n'
-            return sb.toString();
-        }
-
-        private static void sendInternalServerError(HTTPResponse response, Exception e) {
-            response.statusCode = 500;
-            response.reasonPhrase = "Internal Server Error";
-            response.headers.setValue("Connection", "close");
-            response.headers.setValue("Content-Type", "text/plain");
-            StringBuilder errorMsg = new StringBuilder();
-            errorMsg.append("500 INTERNAL SERVER ERROR").append("\n\n");
-            StringWriter sw = new StringWriter();
-            e.printStackTrace(new PrintWriter(sw));
-            errorMsg.append(sw);
-            response.body = StandardCharsets.US_ASCII.encode(errorMsg.toString()).array();
-        }
     }
 
 }
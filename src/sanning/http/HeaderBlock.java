@@ -0,0 +1,27 @@
+package sanning.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constant response header lines, encoded once and written as is with each response.
+ */
+public final class HeaderBlock {
+
+   private final byte[] bytes;
+
+   /**
+    * @param namesAndValues header names and values: name1, value1, name2, value2...
+    */
+   public HeaderBlock(String... namesAndValues) {
+      StringBuilder sb = new StringBuilder();
+      for (int ix = 0; ix + 1 < namesAndValues.length; ix += 2) {
+         sb.append(namesAndValues[ix]).append(": ").append(namesAndValues[ix + 1]).append("\r\n");
+      }
+      bytes = sb.toString().getBytes(StandardCharsets.US_ASCII);
+   }
+
+   /** Encoded header lines, not to be modified. */
+   ByteBuffer buffer() { return ByteBuffer.wrap(bytes); }
+
+}
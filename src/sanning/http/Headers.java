@@ -8,6 +8,24 @@ import java.util.Map;
 
 public final class Headers {
 
+   /** Known header names, recognized by request parser and looked up without lowercasing. */
+   static final String[] KNOWN_NAMES = {
+         "Accept", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Authorization", "Cache-Control",
+         "Connection", "Content-Length", "Content-Range", "Content-Type", "Cookie", "ETag", "Expires", "Host",
+         "If-Modified-Since", "If-None-Match", "If-Range", "Last-Modified", "Origin", "Pragma", "Range", "Referer",
+         "Server", "Transfer-Encoding", "User-Agent"
+   };
+   /** Lowercase key of known header names, by name as spelled in KNOWN_NAMES and in lowercase. */
+   private static final Map<String, String> KNOWN_KEYS = new HashMap<>();
+
+   static {
+      for (String name : KNOWN_NAMES) {
+         String key = name.toLowerCase();
+         KNOWN_KEYS.put(name, key);
+         KNOWN_KEYS.put(key, key);
+      }
+   }
+
    private final List<String> names;
    private final Map<String, List<String>> headerMap;
 
@@ -23,17 +41,33 @@ public final class Headers {
 
    @SuppressWarnings("unchecked")
    public List<String> multiValue(String name) {
-      List<String> values = headerMap.get(name.toLowerCase());
+      List<String> values = headerMap.get(key(name));
       return values != null ? values : Collections.EMPTY_LIST;
    }
 
    public String singleValue(String name) {
-      List<String> values = headerMap.get(name.toLowerCase());
+      List<String> values = headerMap.get(key(name));
       return values != null ? values.get(0) : null;
    }
 
-   private void doSetValue(String name, String value, boolean override) {
-      String lname = name.toLowerCase();
+   /** Remove all headers. */
+   void clear() {
+      names.clear();
+      headerMap.clear();
+   }
+
+   /** Add value of header with lowercase key of name, as parsed. */
+   void addValue(String name, String key, String value) { doSetValue(name, key, value, false); }
+
+   /** Lowercase key of header name. */
+   static String key(String name) {
+      String key = KNOWN_KEYS.get(name);
+      return (key != null) ? key : name.toLowerCase();
+   }
+
+   private void doSetValue(String name, String value, boolean override) { doSetValue(name, key(name), value, override); }
+
+   private void doSetValue(String name, String lname, String value, boolean override) {
       List<String> values = headerMap.get(lname);
       if (values == null) {
          values = new ArrayList<>(1);
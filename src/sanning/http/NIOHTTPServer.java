@@ -0,0 +1,572 @@
+package sanning.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * Non-blocking HTTP server. All connections are multiplexed by one selector thread, which reads and parses requests
+ * and writes responses, optionally over TLS by SSLEngine. Complete requests are dispatched to executor, one request
+ * at a time per connection, so executor threads are only used while processing requests.
+ * <p>
+ * Timeouts are as for {@link HTTPServer}: read timeout for first request and while a request is received, idle
+ * timeout between requests. Connections are checked for timeout once per sweep interval.
+ * <p>
+ * Delegated TLS handshake tasks, such as key exchange computations, are run by executor, not by selector thread.
+ */
+public final class NIOHTTPServer implements Runnable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PENDING = 256 * 1024;        // Maximum pending output before streamed body waits.
+    private static final int SWEEP_INTERVAL = 1000;           // Interval of timeout checks, in milliseconds.
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private final int port;
+    private final HTTPProcessor httpProcessor;
+    private final Executor executor;
+    private final int readTimeout;
+    private final int idleTimeout;
+    private final SSLContext sslContext;
+    private final Queue<Connection> updates;
+    private Selector selector;
+
+    public NIOHTTPServer(int port, HTTPProcessor httpProcessor, int readTimeout, int idleTimeout, SSLContext sslContext, Executor executor) {
+        this.port = port;
+        this.httpProcessor = httpProcessor;
+        this.readTimeout = readTimeout;
+        this.idleTimeout = idleTimeout;
+        this.executor = executor;
+        this.sslContext = sslContext;
+        this.updates = new ConcurrentLinkedQueue<>();
+    }
+
+    public void run() {
+        try {
+            selector = Selector.open();
+            ServerSocketChannel ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress(port), 50);
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+            //noinspection InfiniteLoopStatement
+            for (; ; ) {
+                selector.select(SWEEP_INTERVAL);
+
+                // Connections updated by request processing or delegated TLS tasks.
+                Connection updated;
+                while ((updated = updates.poll()) != null) {
+                    try {
+                        updated.resume();
+                        updated.update();
+                    } catch (IOException | RuntimeException e) {
+                        updated.close();
+                    }
+                }
+
+                // Ready connections.
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(ssc);
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                            connection.update();
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                }
+
+                // Timeouts, once per sweep interval.
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    nextSweep = now + SWEEP_INTERVAL;
+                    for (SelectionKey key : selector.keys()) {
+                        Connection connection = (Connection) key.attachment();
+                        if ((connection != null) && connection.isTimedOut(now)) {
+                            connection.close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: listener I/O error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    //
+    // Helper methods:
+    //
+
+    private void accept(ServerSocketChannel ssc) throws IOException {
+        SocketChannel channel;
+        while ((channel = ssc.accept()) != null) {
+            channel.configureBlocking(false);
+            SSLEngine engine = null;
+            if (sslContext != null) {
+                engine = sslContext.createSSLEngine();
+                engine.setUseClientMode(false);
+                engine.beginHandshake();
+            }
+            Connection connection = new Connection(channel, engine);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    /** Connection state. Output is queued by processing thread and written by selector thread. */
+    private final class Connection {
+
+        final SocketChannel channel;
+        final SSLEngine engine;
+        SelectionKey key;
+        ByteBuffer in;                        // Received request data, in write mode.
+        ByteBuffer netIn;                     // Received TLS data, in write mode.
+        ByteBuffer netOut;                    // TLS data to send, in read mode.
+        final ReentrantLock lock;
+        final Condition drained;              // Signalled when response data is sent or connection is closed.
+        final ArrayDeque<ByteBuffer> out;     // Response data to send, guarded by lock.
+        int pending;                          // Bytes of response data to send, guarded by lock.
+        boolean processing;                   // Request is processed, guarded by lock.
+        boolean closing;                      // Close when response is sent, guarded by lock.
+        boolean closed;                       // Guarded by lock.
+        boolean firstRequest;
+        long deadline;
+        volatile boolean delegating;          // Delegated TLS tasks are run by executor.
+        volatile boolean delegated;           // Delegated TLS tasks are done, handshake is to be resumed.
+
+        Connection(SocketChannel channel, SSLEngine engine) {
+            this.channel = channel;
+            this.engine = engine;
+            in = ByteBuffer.allocate(BUFFER_SIZE);
+            if (engine != null) {
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut.flip();
+            }
+            lock = new ReentrantLock();
+            drained = lock.newCondition();
+            out = new ArrayDeque<>();
+            firstRequest = true;
+            deadline = System.currentTimeMillis() + readTimeout;
+        }
+
+        /** Read available data and dispatch complete request. */
+        void read() throws IOException {
+            ByteBuffer buffer = (engine != null) ? netIn : in;
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= RequestParser.MAX_REQUEST_SIZE) {
+                    throw new IOException("request too large");
+                }
+                buffer = grow(buffer);
+                if (engine != null) {
+                    netIn = buffer;
+                } else {
+                    in = buffer;
+                }
+            }
+            int numRead = channel.read(buffer);
+            if (numRead == -1) {
+                close();
+                return;
+            }
+            if ((engine != null) && (!handshake() || !unwrap())) {
+                return;
+            }
+            deadline = System.currentTimeMillis() + readTimeout;
+            dispatch();
+        }
+
+        /** Write pending output, all queued buffers by one gathering write. */
+        void write() throws IOException {
+            if ((engine != null) && (!flushNet() || !handshake())) {
+                return;
+            }
+            for (; ; ) {
+                ByteBuffer[] buffers;
+                lock.lock();
+                try {
+                    buffers = out.toArray(NO_BUFFERS);
+                } finally {
+                    lock.unlock();
+                }
+                if (buffers.length == 0) {
+                    return;
+                }
+                long written;
+                if (engine != null) {
+                    netOut.clear();
+                    SSLEngineResult result = engine.wrap(buffers, netOut);
+                    netOut.flip();
+                    if (result.getStatus() != SSLEngineResult.Status.OK) {
+                        throw new SSLException("wrap failed: " + result.getStatus());
+                    }
+                    written = result.bytesConsumed();
+                    flushNet();
+                } else {
+                    written = channel.write(buffers);
+                }
+                lock.lock();
+                try {
+                    pending -= (int) written;
+                    while (!out.isEmpty() && !out.peek().hasRemaining()) {
+                        out.poll();
+                    }
+                    drained.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (buffers[buffers.length - 1].hasRemaining() || ((engine != null) && netOut.hasRemaining())) {
+                    return;
+                }
+            }
+        }
+
+        /** Update interest, close if closing and response is sent, dispatch pipelined request. */
+        void update() {
+            if (!key.isValid()) {
+                return;
+            }
+            boolean output;
+            lock.lock();
+            try {
+                output = !out.isEmpty() || ((engine != null) && netOut.hasRemaining());
+                if (closing && !processing && !output) {
+                    close();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!output && !processing) {
+                dispatch();
+            }
+            int ops = 0;
+            lock.lock();
+            try {
+                if (!processing && !closing) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if (!out.isEmpty() || ((engine != null) && netOut.hasRemaining())) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            } finally {
+                lock.unlock();
+            }
+            key.interestOps(ops);
+        }
+
+        /** Resume TLS handshake when delegated tasks are done, and dispatch request received meanwhile. */
+        void resume() throws IOException {
+            if (delegated && key.isValid()) {
+                delegated = false;
+                if (handshake() && unwrap()) {
+                    dispatch();
+                }
+            }
+        }
+
+        boolean isTimedOut(long now) {
+            lock.lock();
+            try {
+                return !processing && out.isEmpty() && (now > deadline);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Enqueue response data, waiting while too much output is pending. */
+        void enqueue(ByteBuffer... buffers) throws IOException {
+            lock.lock();
+            try {
+                while ((pending > MAX_PENDING) && !closed) {
+                    drained.await();
+                }
+                if (closed) {
+                    throw new ClosedChannelException();
+                }
+                for (ByteBuffer buffer : buffers) {
+                    out.add(buffer);
+                    pending += buffer.remaining();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("write interrupted");
+            } finally {
+                lock.unlock();
+            }
+            updates.add(this);
+            selector.wakeup();
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            key.cancel();
+            try { channel.close(); } catch (IOException ignored) { }
+        }
+
+        //
+        // Helper methods:
+        //
+
+        /** Parse complete request, if any, and dispatch it to executor. */
+        private void dispatch() {
+            lock.lock();
+            try {
+                if (processing || closing || closed) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // Request head, skipping leading empty lines.
+            in.flip();
+            while ((in.remaining() >= 2) && (in.get(in.position()) == '\r') && (in.get(in.position() + 1) == '\n')) {
+                in.position(in.position() + 2);
+            }
+            int headEnd = RequestParser.indexOfHeadEnd(in.array(), in.position(), in.limit());
+            if (headEnd == -1) {
+                in.compact();
+                return;
+            }
+            Headers requestHeaders = new Headers();
+            String requestLine = RequestParser.parseHead(in.array(), in.position(), headEnd, requestHeaders, true);
+
+            // Request body.
+            String contentLengthStr = requestHeaders.singleValue("Content-Length");
+            int contentLength = (contentLengthStr != null) ? Integer.parseInt(contentLengthStr) : 0;
+            int requestEnd = headEnd + 4 + contentLength;
+            if (requestEnd > in.limit()) {
+                in.compact();
+                if (requestEnd > in.capacity()) {
+                    in = grow(in, requestEnd);
+                }
+                return;
+            }
+            String body = null;
+            if (contentLengthStr != null) {
+                body = HTTPServer.decodeBody(requestHeaders, in.duplicate().position(headEnd + 4).limit(requestEnd));
+            }
+            in.position(requestEnd);
+            in.compact();
+
+            // Dispatch.
+            InetSocketAddress remoteAddress;
+            try {
+                remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            HTTPRequest request = new HTTPRequest(requestLine, requestHeaders, body, remoteAddress);
+            lock.lock();
+            try {
+                processing = true;
+                firstRequest = false;
+            } finally {
+                lock.unlock();
+            }
+            executor.execute(() -> process(request));
+        }
+
+        /** Process request and enqueue response, on executor thread. */
+        private void process(HTTPRequest request) {
+            HTTPResponse response = HTTPServer.process(httpProcessor, request);
+            boolean shouldClose = "close".equals(request.headers.singleValue("Connection")) ||
+                                  "close".equals(response.headers.singleValue("Connection"));
+            try {
+                ByteBuffer body = ((response.bodyWriter == null) && (response.body != null)) ? ByteBuffer.wrap(response.body) : null;
+                enqueue(HTTPServer.encodeResponse(response, body));
+                if (response.bodyWriter != null) {
+                    WritableByteChannel outChannel = new OutputChannel(this);
+                    if (response.bodyLength >= 0) {
+                        response.bodyWriter.write(outChannel);
+                    } else {
+                        HTTPServer.ChunkedChannel chunkedChannel = new HTTPServer.ChunkedChannel(outChannel);
+                        response.bodyWriter.write(chunkedChannel);
+                        chunkedChannel.close();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                shouldClose = true;
+            }
+            lock.lock();
+            try {
+                processing = false;
+                closing = closing || shouldClose;
+                deadline = System.currentTimeMillis() + (firstRequest ? readTimeout : idleTimeout);
+            } finally {
+                lock.unlock();
+            }
+            updates.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Progress TLS handshake.
+         * @return true if not handshaking
+         */
+        private boolean handshake() throws IOException {
+            for (; ; ) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        if (!delegating) {
+                            delegating = true;
+                            executor.execute(this::runDelegatedTasks);
+                        }
+                        return false;
+                    case NEED_WRAP:
+                        if (!flushNet()) {
+                            return false;
+                        }
+                        netOut.clear();
+                        SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                        netOut.flip();
+                        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            flushNet();
+                            throw new SSLException("TLS closed");
+                        }
+                        if (!flushNet()) {
+                            return false;
+                        }
+                        break;
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        if (!unwrapOnce()) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        return true;
+                }
+            }
+        }
+
+        /** Run delegated TLS tasks, on executor thread, and have handshake resumed by selector thread. */
+        private void runDelegatedTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            delegated = true;
+            delegating = false;
+            updates.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Unwrap received TLS data into request data.
+         * @return true if not handshaking
+         */
+        private boolean unwrap() throws IOException {
+            while (unwrapOnce()) {
+                if (!handshake()) {
+                    return false;
+                }
+            }
+            return handshake();
+        }
+
+        /** @return true if data was unwrapped */
+        private boolean unwrapOnce() throws IOException {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, in);
+            netIn.compact();
+            switch (result.getStatus()) {
+                case OK:
+                    return (result.bytesConsumed() > 0) || (result.bytesProduced() > 0);
+                case BUFFER_OVERFLOW:
+                    in = grow(in, in.capacity() + engine.getSession().getApplicationBufferSize());
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity()) {
+                        netIn = grow(netIn, netIn.capacity() + engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                default:
+                    throw new SSLException("TLS closed");
+            }
+        }
+
+        /** @return true if all TLS data is sent */
+        private boolean flushNet() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private ByteBuffer grow(ByteBuffer buffer) { return grow(buffer, buffer.capacity() * 2); }
+
+        private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+            if (capacity > RequestParser.MAX_REQUEST_SIZE + BUFFER_SIZE) {
+                throw new IllegalStateException("request too large");
+            }
+            ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            return newBuffer;
+        }
+    }
+
+    /** Output of connection as channel, for streamed bodies. Written data is copied to connection output. */
+    private static final class OutputChannel implements WritableByteChannel {
+
+        private final Connection connection;
+
+        OutputChannel(Connection connection) {
+            this.connection = connection;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int len = src.remaining();
+            ByteBuffer copy = ByteBuffer.allocate(len);
+            copy.put(src).flip();
+            connection.enqueue(copy);
+            return len;
+        }
+
+        public boolean isOpen() { return true; }
+
+        public void close() { }
+    }
+
+}
@@ -0,0 +1,226 @@
+package sanning.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Buffered byte level HTTP request parser. Request data is read in blocks into a buffer reused for all requests of a
+ * connection, and request line and headers are tokenized in place. Known header names (see
+ * {@link Headers#KNOWN_NAMES}) are matched without regex or lowercasing.
+ */
+final class RequestParser {
+
+    static final int BUFFER_SIZE = 8 * 1024;
+    static final int MAX_REQUEST_SIZE = 1024 * 1024;  // Maximum size of request head and body.
+
+    /** Known header names by length. */
+    private static final String[][] KNOWN_BY_LENGTH = new String[32][];
+
+    static {
+        for (String name : Headers.KNOWN_NAMES) {
+            String[] names = KNOWN_BY_LENGTH[name.length()];
+            names = (names == null) ? new String[1] : Arrays.copyOf(names, names.length + 1);
+            names[names.length - 1] = name;
+            KNOWN_BY_LENGTH[name.length()] = names;
+        }
+    }
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;  // Start of unparsed data in buffer.
+    private int limit;     // End of data in buffer.
+
+    RequestParser(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /** Buffer contains unparsed data. */
+    boolean hasBuffered() { return position < limit; }
+
+    /**
+     * Read more request data.
+     * @return false on end of stream
+     */
+    boolean fill() throws IOException {
+        if (limit == buffer.length) {
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            } else if (buffer.length < MAX_REQUEST_SIZE) {
+                buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_REQUEST_SIZE));
+            } else {
+                throw new IllegalStateException("request too large");
+            }
+        }
+        int numRead = in.read(buffer, limit, buffer.length - limit);
+        if (numRead == -1) {
+            return false;
+        }
+        limit += numRead;
+        return true;
+    }
+
+    /**
+     * Read request head.
+     * @param headers         headers of request, to add to
+     * @param withRequestLine head starts with request line, otherwise request line was already read
+     * @return request line, or null if head has no request line
+     */
+    String readHead(Headers headers, boolean withRequestLine) throws IOException {
+        if (withRequestLine) {
+            // Skip empty lines before request line.
+            for (; ; ) {
+                while ((limit - position < 2) && fill()) { }
+                if ((limit - position >= 2) && (buffer[position] == '\r') && (buffer[position + 1] == '\n')) {
+                    position += 2;
+                } else {
+                    break;
+                }
+            }
+        } else {
+            // No headers.
+            while ((limit - position < 2) && fill()) { }
+            if ((limit - position >= 2) && (buffer[position] == '\r') && (buffer[position + 1] == '\n')) {
+                position += 2;
+                return null;
+            }
+        }
+
+        int headEnd;
+        int from = position;
+        while ((headEnd = indexOfHeadEnd(buffer, from, limit)) == -1) {
+            from = Math.max(position, limit - 3);
+            int oldPosition = position;
+            if (!fill()) {
+                throw new IllegalStateException("unexpected EOF");
+            }
+            from -= oldPosition - position;
+        }
+        String requestLine = parseHead(buffer, position, headEnd, headers, withRequestLine);
+        position = headEnd + 4;
+        return requestLine;
+    }
+
+    /**
+     * Read request body, valid until next read.
+     * @return body or null if connection closed before complete body
+     */
+    ByteBuffer readBody(int contentLength) throws IOException {
+        if (contentLength > MAX_REQUEST_SIZE) {
+            throw new IllegalStateException("request too large");
+        }
+        if (contentLength > buffer.length - position) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            if (contentLength > buffer.length) {
+                buffer = Arrays.copyOf(buffer, contentLength);
+            }
+        }
+        while (limit - position < contentLength) {
+            if (!fill()) {
+                return null;
+            }
+        }
+        ByteBuffer body = ByteBuffer.wrap(buffer, position, contentLength);
+        position += contentLength;
+        return body;
+    }
+
+    /**
+     * Parse request head, without terminating empty line.
+     * @param withRequestLine head starts with request line
+     * @return request line, or null if head has no request line
+     */
+    static String parseHead(byte[] bytes, int from, int to, Headers headers, boolean withRequestLine) {
+        String requestLine = null;
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = indexOfLineEnd(bytes, lineStart, to);
+            if (withRequestLine && (requestLine == null)) {
+                requestLine = new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+            } else {
+                parseHeader(bytes, lineStart, lineEnd, headers);
+            }
+            lineStart = lineEnd + 2;
+        }
+        return requestLine;
+    }
+
+    /** Index of empty line ending request head (CRLF CRLF), or -1 if not found. */
+    static int indexOfHeadEnd(byte[] bytes, int from, int to) {
+        for (int ix = from; ix + 3 < to; ix++) {
+            if ((bytes[ix + 3] == '\n') && (bytes[ix] == '\r') && (bytes[ix + 1] == '\n') && (bytes[ix + 2] == '\r')) {
+                return ix;
+            }
+        }
+        return -1;
+    }
+
+    //
+    // Helper methods:
+    //
+
+    /** Parse header line: name ":" OWS value OWS. Lines without colon are ignored. */
+    private static void parseHeader(byte[] bytes, int from, int to, Headers headers) {
+        int colon = from;
+        while ((colon < to) && (bytes[colon] != ':')) {
+            colon++;
+        }
+        if (colon == to) {
+            return;
+        }
+        int valueStart = colon + 1;
+        while ((valueStart < to) && ((bytes[valueStart] == ' ') || (bytes[valueStart] == '\t'))) {
+            valueStart++;
+        }
+        int valueEnd = to;
+        while ((valueEnd > valueStart) && ((bytes[valueEnd - 1] == ' ') || (bytes[valueEnd - 1] == '\t'))) {
+            valueEnd--;
+        }
+        String value = new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+
+        String name = knownName(bytes, from, colon);
+        if (name != null) {
+            headers.addValue(name, Headers.key(name), value);
+        } else {
+            name = new String(bytes, from, colon - from, StandardCharsets.ISO_8859_1);
+            headers.addValue(name, name.toLowerCase(), value);
+        }
+    }
+
+    /** Known header name matching bytes, ignoring ASCII case, or null. */
+    private static String knownName(byte[] bytes, int from, int to) {
+        int len = to - from;
+        String[] names = (len < KNOWN_BY_LENGTH.length) ? KNOWN_BY_LENGTH[len] : null;
+        if (names != null) {
+            for (String name : names) {
+                int ix = 0;
+                while ((ix < len) && (toLowerCase(bytes[from + ix]) == toLowerCase(name.charAt(ix)))) {
+                    ix++;
+                }
+                if (ix == len) {
+                    return name;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int toLowerCase(int c) { return ((c >= 'A') && (c <= 'Z')) ? c + ('a' - 'A') : c; }
+
+    private static int indexOfLineEnd(byte[] bytes, int from, int to) {
+        for (int ix = from; ix + 1 < to; ix++) {
+            if ((bytes[ix] == '\r') && (bytes[ix + 1] == '\n')) {
+                return ix;
+            }
+        }
+        return to;
+    }
+
+}